@@ -0,0 +1,53 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+namespace tf_tensorboard {
+  const lazyImports: {[href: string]: Promise<void>} = {};
+
+  /**
+   * Imports the HTML chunks that the vulcanizer split off for `group`.
+   *
+   * A vulcanized binary with chunks replaces the HTML import of each chunk's
+   * entry with `<link rel="lazy-import" group="..." href="...">`, where the
+   * group is the file name of the entry without its extension (for instance,
+   * tf-graph-dashboard). Custom elements defined by the chunk are upgraded
+   * once it is loaded. Each chunk is only fetched once; without chunks, this
+   * resolves right away.
+   */
+  export function importLazyGroup(group: string): Promise<void> {
+    const links = Array.from(
+      document.querySelectorAll(`link[rel="lazy-import"][group="${group}"]`)
+    );
+    return Promise.all(
+      links.map((link) => importLazyHref((link as HTMLLinkElement).href))
+    ).then(() => {});
+  }
+
+  function importLazyHref(href: string): Promise<void> {
+    if (!(href in lazyImports)) {
+      lazyImports[href] = new Promise((resolve, reject) => {
+        (Polymer as any).importHref(
+          href,
+          () => resolve(),
+          () => {
+            delete lazyImports[href];
+            reject(new Error(`Failed to load ${href}`));
+          },
+          true /* async */
+        );
+      });
+    }
+    return lazyImports[href];
+  }
+} // namespace tf_tensorboard
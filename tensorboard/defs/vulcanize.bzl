@@ -26,6 +26,12 @@ def _tensorboard_html_binary(ctx):
   [name].html.scripts_sha256 file that contains sha256 hash, in base64, of all
   script elements (sources inside element and content of JavaScript src they
   point at). The hashes are delimited by newline.
+
+  Each entry of the chunks attribute splits an HTML import off into
+  [name].[chunk].html, next to the output path, which the main document loads
+  on demand: tf-tensorboard imports it when it stamps the custom element named
+  like the entry's file. The hashes of its scripts are in the same file as the
+  others. An entry that another entry imports fails the build.
   """
   deps = unfurl(ctx.attr.deps, provider="webfiles")
   manifests = depset(order="postorder")
@@ -47,6 +53,46 @@ def _tensorboard_html_binary(ctx):
   else:
     ignore_regexs_file_set = depset([ctx.file.path_regexs_for_noinline])
     ignore_regexs_file_path = ctx.file.path_regexs_for_noinline.path
+  # Workers require all arguments to be passed through a params file.
+  args = ctx.actions.args()
+  args.use_param_file("@%s", use_always=True)
+  args.set_param_file_format("multiline")
+  if ctx.attr.parallel_compile:
+    args.add("--parallel_compile")
+  if not ctx.attr.stream_output:
+    args.add("--stream_output=false")
+  if ctx.attr.minify_styles:
+    args.add("--minify_styles")
+  if ctx.attr.stream_documents:
+    if ctx.attr.compile or ctx.attr.chunks or ctx.attr.minify_styles:
+      fail("stream_documents can't be combined with compile, chunks or minify_styles")
+    args.add("--stream_documents")
+  # Opt into the script cache with --define=VULCANIZE_CACHE_DIR=/some/dir. The directory has to be
+  # writable from the action, e.g. by using the worker or local strategy for Vulcanize.
+  if ctx.var.get("VULCANIZE_CACHE_DIR"):
+    args.add("--cache_dir=" + ctx.var["VULCANIZE_CACHE_DIR"])
+  # --define=VULCANIZE_METRICS=1 prints phase timings and counters as JSON to stderr.
+  if ctx.var.get("VULCANIZE_METRICS"):
+    args.add("--metrics_file=-")
+  chunks = []
+  output_dir = ctx.attr.output_path[:ctx.attr.output_path.rfind("/")]
+  for name, entry in sorted(ctx.attr.chunks.items()):
+    chunk = ctx.actions.declare_file("%s.%s.html" % (ctx.label.name, name))
+    webpath = "%s/%s" % (output_dir, chunk.basename)
+    args.add("--chunk=%s,%s,%s" % (entry, webpath, chunk.path))
+    chunks.append(struct(file=chunk, webpath=webpath))
+  chunk_files = [chunk.file for chunk in chunks]
+  webpaths = depset([chunk.webpath for chunk in chunks], transitive=[webpaths])
+  args.add_all([ctx.attr.compilation_level,
+                "true" if ctx.attr.compile else "false",
+                "true" if ctx.attr.testonly else "false",
+                ctx.attr.input_path,
+                ctx.attr.output_path,
+                ctx.outputs.html.path,
+                ctx.outputs.shasum.path,
+                ignore_regexs_file_path])
+  args.add_all(jslibs)
+  args.add_all(manifests)
   ctx.actions.run(
       inputs=depset(transitive=[
           manifests,
@@ -54,18 +100,10 @@ def _tensorboard_html_binary(ctx):
           ignore_regexs_file_set,
       ]).to_list(),
       tools=jslibs,
-      outputs=[ctx.outputs.html, ctx.outputs.shasum],
+      outputs=[ctx.outputs.html, ctx.outputs.shasum] + chunk_files,
       executable=ctx.executable._Vulcanize,
-      arguments=([ctx.attr.compilation_level,
-                  "true" if ctx.attr.compile else "false",
-                  "true" if ctx.attr.testonly else "false",
-                  ctx.attr.input_path,
-                  ctx.attr.output_path,
-                  ctx.outputs.html.path,
-                  ctx.outputs.shasum.path,
-                  ignore_regexs_file_path] +
-                 [f.path for f in jslibs.to_list()] +
-                 [f.path for f in manifests.to_list()]),
+      arguments=[args],
+      execution_requirements={"supports-workers": "1"},
       mnemonic="Vulcanize",
       progress_message="Vulcanizing %s" % ctx.attr.input_path)
 
@@ -73,6 +111,10 @@ def _tensorboard_html_binary(ctx):
   manifest_srcs = [struct(path=ctx.outputs.html.path,
                           longpath=long_path(ctx, ctx.outputs.html),
                           webpath=ctx.attr.output_path)]
+  manifest_srcs += [struct(path=chunk.file.path,
+                           longpath=long_path(ctx, chunk.file),
+                           webpath=chunk.webpath)
+                    for chunk in chunks]
   manifest = ctx.actions.declare_file("%s.pbtxt" % ctx.label.name)
   ctx.actions.write(
       output=manifest,
@@ -109,7 +151,7 @@ def _tensorboard_html_binary(ctx):
         dep.data_runfiles.files,
     ])
   return struct(
-      files=depset([ctx.outputs.html]),
+      files=depset([ctx.outputs.html] + chunk_files),
       webfiles=struct(
           manifest=manifest,
           manifests=manifests,
@@ -119,7 +161,7 @@ def _tensorboard_html_binary(ctx):
           files=ctx.files.data + [manifest,
                                   params_file,
                                   ctx.outputs.html,
-                                  ctx.outputs.executable],
+                                  ctx.outputs.executable] + chunk_files,
           transitive_files=transitive_runfiles))
 
 tensorboard_html_binary = rule(
@@ -130,6 +172,14 @@ tensorboard_html_binary = rule(
         "input_path": attr.string(mandatory=True),
         "output_path": attr.string(mandatory=True),
         "compile": attr.bool(),
+        "parallel_compile": attr.bool(),
+        # Set to False to print the output with jsoup, which writes the same bytes.
+        "stream_output": attr.bool(default=True),
+        "minify_styles": attr.bool(),
+        # Writes the output while walking the documents, when not compiling.
+        "stream_documents": attr.bool(),
+        # Maps chunk names to the webpaths of the HTML imports they start at.
+        "chunks": attr.string_dict(),
         "data": attr.label_list(allow_files=True),
         "deps": attr.label_list(aspects=[closure_js_aspect], mandatory=True),
         "external_assets": attr.string_dict(default={"/_/runfiles": "."}),
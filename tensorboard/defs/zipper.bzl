@@ -25,12 +25,24 @@ def _tensorboard_zip_file(ctx):
     manifests = depset(transitive=[manifests, dep.webfiles.manifests])
     webpaths = depset(transitive=[webpaths, dep.webfiles.webpaths])
     files = depset(transitive=[files, dep.data_runfiles.files])
+  # --define=VULCANIZE_METRICS=1 prints entry counts, sizes and throughput as JSON to stderr.
+  flags = ["--metrics_file=-"] if ctx.var.get("VULCANIZE_METRICS") else []
+  if ctx.attr.parallel:
+    flags.append("--parallel")
+  if ctx.attr.text_compression_level != 1:
+    flags.append("--text_level=%d" % ctx.attr.text_compression_level)
+  outputs = [ctx.outputs.zip]
+  if ctx.attr.index:
+    index = ctx.actions.declare_file("%s.idx" % ctx.label.name)
+    flags.append("--index_file=" + index.path)
+    outputs.append(index)
   ctx.actions.run(
       mnemonic="Zipper",
       inputs=depset(transitive=[manifests, files]).to_list(),
-      outputs=[ctx.outputs.zip],
+      outputs=outputs,
       executable=ctx.executable._Zipper,
-      arguments=([ctx.outputs.zip.path] +
+      arguments=(flags +
+                 [ctx.outputs.zip.path] +
                  [m.path for m in manifests.to_list()]),
       progress_message="Zipping %d files" % len(webpaths.to_list()))
   transitive_runfiles = depset()
@@ -40,9 +52,9 @@ def _tensorboard_zip_file(ctx):
         dep.data_runfiles.files,
     ])
   return struct(
-      files=depset([ctx.outputs.zip]),
+      files=depset(outputs),
       runfiles=ctx.runfiles(
-          files=ctx.files.data + [ctx.outputs.zip],
+          files=ctx.files.data + outputs,
           transitive_files=transitive_runfiles))
 
 tensorboard_zip_file = rule(
@@ -50,6 +62,12 @@ tensorboard_zip_file = rule(
     attrs={
         "data": attr.label_list(allow_files=True),
         "deps": attr.label_list(providers=["webfiles"], mandatory=True),
+        # Deflates entries on all cores, which only pays off for big trees.
+        "parallel": attr.bool(),
+        # Deflater level of HTML, JS, CSS and other text. Images and fonts are always stored.
+        "text_compression_level": attr.int(default=1, values=range(-1, 10)),
+        # Also writes %{name}.idx, a sorted index of the entries for servers to mmap.
+        "index": attr.bool(),
         "_Zipper": attr.label(
             default=Label("//tensorboard/java/org/tensorflow/tensorboard/vulcanize:Zipper"),
             executable=True,
@@ -0,0 +1,103 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how {@link Zipper} compresses each entry, based on its file extension.
+ *
+ * <p>Images, fonts and archives are compressed already, so deflating them costs time, saves next to
+ * nothing, and makes whoever serves them inflate them again. Those are stored. Text, which is most
+ * of what we ship and what gets downloaded the most, may be worth a slower level than the rest.
+ * Entries of unknown types can be sampled, and stored if deflate doesn't save enough.
+ */
+final class CompressionPolicy {
+
+  /** Formats that are compressed already. */
+  static final ImmutableSet<String> PRECOMPRESSED_EXTENSIONS =
+      ImmutableSet.of(
+          "br", "bz2", "gif", "gz", "jpeg", "jpg", "mp3", "mp4", "ogg", "png", "tgz", "webm",
+          "webp", "woff", "woff2", "xz", "zip");
+
+  /** Formats that compress well, and are worth a higher level. */
+  static final ImmutableSet<String> TEXT_EXTENSIONS =
+      ImmutableSet.of("css", "html", "js", "json", "map", "svg", "txt", "xml");
+
+  /** How much of an entry of unknown type gets deflated to decide whether to store it. */
+  static final int SAMPLE_BYTES = 64 * 1024;
+
+  private final boolean storePrecompressed;
+  private final int textLevel;
+  private final int otherLevel;
+  private final double minSavings;
+
+  /**
+   * @param storePrecompressed whether to store {@link #PRECOMPRESSED_EXTENSIONS} rather than
+   *     deflate them
+   * @param textLevel Deflater level of {@link #TEXT_EXTENSIONS}
+   * @param otherLevel Deflater level of everything else
+   * @param minSavings fraction of its size deflate has to save on an entry that isn't text for it
+   *     not to be stored, or zero to always deflate those
+   */
+  CompressionPolicy(boolean storePrecompressed, int textLevel, int otherLevel, double minSavings) {
+    checkArgument(isLevel(textLevel), "Bad text compression level: %s", textLevel);
+    checkArgument(isLevel(otherLevel), "Bad compression level: %s", otherLevel);
+    checkArgument(minSavings >= 0 && minSavings < 1, "Bad minimum savings: %s", minSavings);
+    this.storePrecompressed = storePrecompressed;
+    this.textLevel = textLevel;
+    this.otherLevel = otherLevel;
+    this.minSavings = minSavings;
+  }
+
+  /** Returns a policy that deflates everything at {@code level}, like WebfilesWriter does. */
+  static CompressionPolicy uniform(int level) {
+    return new CompressionPolicy(false, level, level, 0);
+  }
+
+  /** Returns whether {@code name} should be stored without even trying to deflate it. */
+  boolean shouldStore(String name) {
+    return storePrecompressed && PRECOMPRESSED_EXTENSIONS.contains(getExtension(name));
+  }
+
+  /** Returns the Deflater level of {@code name}. */
+  int getLevel(String name) {
+    return TEXT_EXTENSIONS.contains(getExtension(name)) ? textLevel : otherLevel;
+  }
+
+  /** Returns whether deflated entries of {@code name} have to prove they're worth it. */
+  boolean shouldSample(String name) {
+    return minSavings > 0 && !TEXT_EXTENSIONS.contains(getExtension(name));
+  }
+
+  /** Returns whether deflating {@code size} bytes down to {@code compressedSize} saves enough. */
+  boolean isWorthDeflating(long size, long compressedSize) {
+    return size - compressedSize >= size * minSavings;
+  }
+
+  private static String getExtension(String name) {
+    return Files.getFileExtension(name).toLowerCase(Locale.ROOT);
+  }
+
+  private static boolean isLevel(int level) {
+    return level == Deflater.DEFAULT_COMPRESSION
+        || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION);
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks which entries {@link CompressionPolicy} stores, and how it deflates the rest. */
+@RunWith(JUnit4.class)
+public final class CompressionPolicyTest {
+
+  private Path directory;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("CompressionPolicyTest");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void storesPrecompressed() {
+    CompressionPolicy policy = new CompressionPolicy(true, 9, 1, 0);
+    assertTrue(policy.shouldStore("a/b.png"));
+    assertTrue(policy.shouldStore("FONT.WOFF2"));
+    assertFalse(policy.shouldStore("a/b.js"));
+    assertFalse(policy.shouldStore("png"));
+    assertFalse(CompressionPolicy.uniform(6).shouldStore("a/b.png"));
+  }
+
+  @Test
+  public void levels() {
+    CompressionPolicy policy = new CompressionPolicy(true, 9, 1, 0);
+    assertEquals(9, policy.getLevel("index.HTML"));
+    assertEquals(9, policy.getLevel("a.js"));
+    assertEquals(1, policy.getLevel("a.bin"));
+    assertEquals(1, policy.getLevel("LICENSE"));
+  }
+
+  @Test
+  public void sampling() {
+    assertTrue(new CompressionPolicy(true, 9, 1, 0.1).shouldSample("a.bin"));
+    assertFalse(new CompressionPolicy(true, 9, 1, 0.1).shouldSample("a.js"));
+  }
+
+  @Test
+  public void minSavings_boundary() {
+    CompressionPolicy policy = new CompressionPolicy(true, 9, 1, 0.25);
+    // Deflating 1000 bytes has to save at least 250 of them.
+    assertTrue(policy.isWorthDeflating(1000, 700));
+    assertTrue(policy.isWorthDeflating(1000, 750));
+    assertFalse(policy.isWorthDeflating(1000, 751));
+    assertFalse(policy.isWorthDeflating(1000, 1001));
+    assertTrue(policy.isWorthDeflating(0, 0));
+  }
+
+  @Test
+  public void minSavings_boundaryOfInexactFraction() {
+    // 0.3 isn't exact as a double, which mustn't move the boundary by a byte.
+    CompressionPolicy policy = new CompressionPolicy(true, 9, 1, 0.3);
+    assertTrue(policy.isWorthDeflating(1000, 700));
+    assertFalse(policy.isWorthDeflating(1000, 701));
+  }
+
+  @Test
+  public void noMinSavings_neverSamples() {
+    CompressionPolicy policy = new CompressionPolicy(true, 9, 1, 0);
+    assertFalse(policy.shouldSample("a.bin"));
+    assertTrue(policy.isWorthDeflating(1000, 1000));
+  }
+
+  @Test
+  public void zipper_minSavingsBoundary() throws IOException {
+    // Half random, so that deflate saves a bit less than half.
+    byte[] content = new byte[1024];
+    new Random(42).nextBytes(content);
+    Arrays.fill(content, 0, 512, (byte) 'a');
+    Path manifest = directory.resolve("manifest.pb");
+    Files.write(directory.resolve("a.bin"), content);
+    Files.write(
+        manifest,
+        Webfiles.newBuilder()
+            .addSrc(
+                WebfilesSource.newBuilder()
+                    .setPath(directory.resolve("a.bin").toString())
+                    .setWebpath("/a.bin"))
+            .build()
+            .toByteArray());
+    long compressedSize = zip(manifest, 0).getCompressedSize();
+    assertTrue(compressedSize < content.length / 2 + 64);
+    // The content is a power of two long, so these fractions are exact.
+    double savings = (content.length - compressedSize) / (double) content.length;
+
+    ZipEntry justEnough = zip(manifest, savings);
+    assertEquals(ZipEntry.DEFLATED, justEnough.getMethod());
+    assertEquals(compressedSize, justEnough.getCompressedSize());
+
+    ZipEntry tooLittle = zip(manifest, savings + 1.0 / content.length);
+    assertEquals(ZipEntry.STORED, tooLittle.getMethod());
+    assertEquals(content.length, tooLittle.getCompressedSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void minSavingsOfOne_isRejected() {
+    new CompressionPolicy(true, 9, 1, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badLevel_isRejected() {
+    new CompressionPolicy(true, Deflater.BEST_COMPRESSION + 1, 1, 0);
+  }
+
+  /** Zips the single entry of {@code manifest} and returns how it was written. */
+  private ZipEntry zip(Path manifest, double minSavings) throws IOException {
+    Path output = directory.resolve("out.zip");
+    Zipper.zip(
+        output,
+        ImmutableList.of(manifest),
+        new CompressionPolicy(true, Deflater.BEST_SPEED, Deflater.BEST_SPEED, minSavings),
+        1,
+        null,
+        null,
+        new Metrics());
+    try (ZipFile zip = new ZipFile(output.toFile())) {
+      return zip.getEntry("a.bin");
+    }
+  }
+}
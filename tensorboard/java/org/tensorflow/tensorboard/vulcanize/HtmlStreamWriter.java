@@ -0,0 +1,255 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.DocumentType;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ * Serializes a vulcanized document straight to a file, byte for byte the way {@code
+ * Html5Printer.stringify()} does.
+ *
+ * <p>Unlike {@code Html5Printer.stringify()}, the document is never held in memory as a string or
+ * byte array: characters are encoded to UTF-8 incrementally through a buffer in front of a {@link
+ * FileChannel}. The CSP hash of every {@code <script>} is computed while it's being written, which
+ * saves walking the document a second time.
+ *
+ * <p>Documents that were spliced in for HTML imports are transparent, i.e. only their children are
+ * written.
+ */
+final class HtmlStreamWriter implements NodeVisitor {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // https://html.spec.whatwg.org/multipage/syntax.html#void-elements
+  private static final ImmutableSet<String> VOID_ELEMENTS =
+      ImmutableSet.of(
+          "area", "base", "basefont", "bgsound", "br", "col", "embed", "frame", "hr", "img",
+          "input", "keygen", "link", "meta", "param", "source", "track", "wbr");
+
+  // Attributes that jsoup writes without a value when it's empty or the same as the name.
+  private static final ImmutableSet<String> BOOLEAN_ATTRIBUTES =
+      ImmutableSet.of(
+          "allowfullscreen", "async", "autofocus", "checked", "compact", "declare", "default",
+          "defer", "disabled", "formnovalidate", "hidden", "inert", "ismap", "itemscope",
+          "multiple", "muted", "nohref", "noresize", "noshade", "novalidate", "nowrap", "open",
+          "readonly", "required", "reversed", "seamless", "selected", "sortable", "truespeed",
+          "typemustmatch");
+
+  private final Writer out;
+  private final ScriptHashes scriptHashes;
+  private Hasher scriptHasher;
+
+  private HtmlStreamWriter(Writer out, WebfileStore store) {
+    this.out = out;
+    this.scriptHashes = new ScriptHashes(store);
+  }
+
+  /**
+   * Writes {@code document} to {@code output}.
+   *
+   * @return base64 SHA-256 of each script in document order, the same as {@code
+   *     Vulcanize.computeScriptShasum} would have returned
+   */
+  static ImmutableList<String> write(Document document, Path output, WebfileStore store)
+      throws IOException {
+    try (FileChannel channel =
+            FileChannel.open(
+                output,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        Writer out =
+            new BufferedWriter(
+                Channels.newWriter(channel, UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE)) {
+      HtmlStreamWriter writer = new HtmlStreamWriter(out, store);
+      try {
+        NodeTraversor.traverse(writer, document);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return writer.scriptHashes.build();
+    }
+  }
+
+  /**
+   * Returns a writer that's given the nodes one at a time, through {@link #head} and {@link #tail},
+   * e.g. while they're being walked, which may throw {@link UncheckedIOException}.
+   */
+  static HtmlStreamWriter to(Writer out, WebfileStore store) {
+    return new HtmlStreamWriter(out, store);
+  }
+
+  /** Returns the hashes of the scripts that were written so far. */
+  ImmutableList<String> getScriptHashes() {
+    return scriptHashes.build();
+  }
+
+  @Override
+  public void head(Node node, int depth) {
+    try {
+      if (node instanceof Document) {
+        return;
+      } else if (node instanceof Element) {
+        startElement((Element) node);
+      } else if (node instanceof SlicedDataNode) {
+        writeContent((SlicedDataNode) node);
+      } else if (node instanceof DataNode) {
+        writeContent(((DataNode) node).getWholeData());
+      } else if (node instanceof TextNode) {
+        // Raw text like the content of <script> and <style> is parsed into data nodes, so jsoup
+        // escapes every text node, even in <xmp> or <iframe>.
+        escape(((TextNode) node).getWholeText(), false);
+      } else if (node instanceof Comment) {
+        out.write("<!--");
+        out.write(((Comment) node).getData());
+        out.write("-->");
+      } else if (node instanceof DocumentType) {
+        // Rare enough to leave to jsoup, along with its public and system IDs.
+        out.write(node.outerHtml());
+      } else {
+        throw new IllegalArgumentException("Can't serialize " + node.getClass());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void tail(Node node, int depth) {
+    if (!(node instanceof Element) || node instanceof Document) {
+      return;
+    }
+    Element element = (Element) node;
+    try {
+      if (element.tagName().equals("script")) {
+        finishScript(element);
+      }
+      if (!VOID_ELEMENTS.contains(element.tagName())) {
+        out.write("</");
+        out.write(element.tagName());
+        out.write('>');
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void startElement(Element element) throws IOException {
+    out.write('<');
+    out.write(element.tagName());
+    for (Attribute attribute : element.attributes()) {
+      out.write(' ');
+      out.write(attribute.getKey());
+      if (!isCollapsed(attribute)) {
+        out.write("=\"");
+        escape(attribute.getValue(), true);
+        out.write('"');
+      }
+    }
+    out.write('>');
+    if (element.tagName().equals("script") && element.attr("src").isEmpty()) {
+      scriptHasher = scriptHashes.newInlineHasher();
+    }
+  }
+
+  private void finishScript(Element script) throws IOException {
+    if (scriptHasher != null) {
+      scriptHashes.addInline(scriptHasher);
+      scriptHasher = null;
+    } else {
+      scriptHashes.addSrc(script);
+    }
+  }
+
+  // Same as Attribute.shouldCollapseAttribute() in jsoup, which isn't public.
+  private static boolean isCollapsed(Attribute attribute) {
+    String value = attribute.getValue();
+    return value == null
+        || ((value.isEmpty() || value.equalsIgnoreCase(attribute.getKey()))
+            && BOOLEAN_ATTRIBUTES.contains(attribute.getKey()));
+  }
+
+  /** Writes unescaped content, which is hashed too if we're inside an inline script. */
+  private void writeContent(String content) throws IOException {
+    out.write(content);
+    if (scriptHasher != null) {
+      scriptHashes.putUtf8(scriptHasher, content);
+    }
+  }
+
+  private void writeContent(SlicedDataNode content) throws IOException {
+    content.writeTo(out);
+    if (scriptHasher != null) {
+      for (CharSequence slice : content.getSlices()) {
+        scriptHashes.putUtf8(scriptHasher, slice);
+      }
+    }
+  }
+
+  // https://html.spec.whatwg.org/multipage/parsing.html#escapingString
+  private void escape(String text, boolean attributeMode) throws IOException {
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      String replacement;
+      switch (text.charAt(i)) {
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '\u00a0':
+          replacement = "&nbsp;";
+          break;
+        case '"':
+          replacement = attributeMode ? "&quot;" : null;
+          break;
+        case '<':
+          replacement = attributeMode ? null : "&lt;";
+          break;
+        case '>':
+          replacement = attributeMode ? null : "&gt;";
+          break;
+        default:
+          replacement = null;
+      }
+      if (replacement != null) {
+        out.write(text, start, i - start);
+        out.write(replacement);
+        start = i + 1;
+      }
+    }
+    out.write(text, start, text.length() - start);
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Html5Printer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks that {@link HtmlStreamWriter} writes the same bytes as {@link Html5Printer}. */
+@RunWith(JUnit4.class)
+public final class HtmlStreamWriterTest {
+
+  private Path output;
+
+  @Before
+  public void createOutput() throws IOException {
+    output = Files.createTempFile("HtmlStreamWriterTest", ".html");
+  }
+
+  @After
+  public void deleteOutput() throws IOException {
+    Files.deleteIfExists(output);
+  }
+
+  @Test
+  public void doctype() throws IOException {
+    assertSameAsPrinter("<!DOCTYPE html><p>x");
+    assertSameAsPrinter("<!doctype html><p>x");
+    assertSameAsPrinter("<!DOCTYPE><p>x");
+  }
+
+  @Test
+  public void doctypeWithIds() throws IOException {
+    assertSameAsPrinter(
+        "<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01//EN\" "
+            + "\"http://www.w3.org/TR/html4/strict.dtd\"><p>x");
+    assertSameAsPrinter("<!DOCTYPE html SYSTEM \"about:legacy-compat\"><p>x");
+  }
+
+  @Test
+  public void emptyAttributes() throws IOException {
+    assertSameAsPrinter("<input value=\"\"><div title=\"\" class></div><a href=\"\">x</a>");
+  }
+
+  @Test
+  public void booleanAttributes() throws IOException {
+    assertSameAsPrinter(
+        "<input disabled><input checked=\"\"><input checked=\"checked\"><input checked=\"no\">"
+            + "<script async defer=\"DEFER\">x();</script><div hidden=\"\">x</div>");
+  }
+
+  @Test
+  public void escaping() throws IOException {
+    assertSameAsPrinter(
+        "<div title='a \"b\" &amp; <c> &nbsp;'>a &amp; &lt;b&gt; \"c\" 'd' &nbsp;</div>"
+            + "<textarea>&lt;/textarea&gt;</textarea><title>a &amp; b</title>");
+  }
+
+  @Test
+  public void rawText() throws IOException {
+    assertSameAsPrinter(
+        "<script>if (a < b && c > d) { x = \"&amp;\"; }</script>"
+            + "<style>a > b { content: \"&\"; }</style>"
+            + "<xmp>a < b</xmp><noscript><p>a &amp; b</p></noscript>");
+  }
+
+  @Test
+  public void commentsAndVoidElements() throws IOException {
+    assertSameAsPrinter(
+        "<!-- a --><html><head><meta charset=\"utf-8\"><link rel=\"x\" href=\"y\"></head>"
+            + "<body><br><img src=\"a.png\"><hr><template><p>a</p></template></body></html>");
+  }
+
+  private void assertSameAsPrinter(String html) throws IOException {
+    Document document = Vulcanize.parse(new ByteArrayInputStream(html.getBytes(UTF_8)));
+    HtmlStreamWriter.write(document, output, new WebfileStore(ImmutableMap.of()));
+    assertEquals(Html5Printer.stringify(document), new String(Files.readAllBytes(output), UTF_8));
+  }
+}
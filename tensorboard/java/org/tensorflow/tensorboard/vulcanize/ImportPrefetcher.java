@@ -0,0 +1,195 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import com.google.common.collect.ImmutableList;
+import io.bazel.rules.closure.Webpath;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ * Reads and parses the HTML import graph ahead of the DOM walk.
+ *
+ * <p>Every document is parsed on a fork-join pool as soon as some other document is found to import
+ * it, so the walk in {@link Vulcanize} only has to splice in documents that are already parsed.
+ * This class makes no decisions about what gets inlined: a document that is never taken is simply
+ * cancelled or thrown away, and one that couldn't be read is left for the caller to load again, so
+ * that errors are reported the same way as before.
+ *
+ * <p>Unless it's transitive, a document's imports are only prefetched once it's taken, so what's
+ * parsed ahead of the walk is bounded by the imports of the documents it's in, rather than being
+ * the whole graph.
+ */
+final class ImportPrefetcher implements AutoCloseable {
+
+  private final WebfileStore store;
+  private final UriFilter uriFilter;
+  private final ForkJoinPool pool;
+  private final Metrics metrics;
+  private final boolean transitive;
+  private final ConcurrentMap<Webpath, ForkJoinTask<Document>> documents =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Webpath, List<Webpath>> imports = new ConcurrentHashMap<>();
+  private final Set<Webpath> taken = ConcurrentHashMap.newKeySet();
+
+  ImportPrefetcher(
+      WebfileStore store,
+      UriFilter uriFilter,
+      ForkJoinPool pool,
+      Metrics metrics,
+      boolean transitive) {
+    this.store = store;
+    this.uriFilter = uriFilter;
+    this.pool = pool;
+    this.metrics = metrics;
+    this.transitive = transitive;
+  }
+
+  /**
+   * Starts parsing the document at {@code path}, unless it was already taken, and if transitive,
+   * everything it imports.
+   */
+  void prefetch(Webpath path) {
+    if (store.contains(path) && !taken.contains(path)) {
+      documents.computeIfAbsent(path, p -> pool.submit(new ParseTask(p)));
+    }
+  }
+
+  /**
+   * Returns the parsed document at {@code path}, waiting for it if necessary.
+   *
+   * <p>Each document is handed out at most once, since it's going to be spliced into the tree.
+   *
+   * @return the document, or null if it wasn't prefetched or couldn't be parsed
+   */
+  Document take(Webpath path) {
+    taken.add(path);
+    ForkJoinTask<Document> task = documents.remove(path);
+    if (task == null) {
+      return null;
+    }
+    Document document;
+    try {
+      document = task.join();
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (!transitive) {
+      for (Webpath target : imports.getOrDefault(path, ImmutableList.of())) {
+        prefetch(target);
+      }
+    }
+    return document;
+  }
+
+  /**
+   * Returns {@code root} and the documents it imports, transitively, waiting for them to be parsed.
+   * Imports of the {@code stops} are followed no further, but the stops that were found are
+   * included.
+   *
+   * <p>This is the graph as the prefetcher sees it, which may have a few more edges than the DOM
+   * walk will follow, e.g. for imports inside a demo-snippet. Documents that couldn't be parsed
+   * have no imports. Must be called before the documents are taken.
+   */
+  Set<Webpath> reach(Webpath root, Set<Webpath> stops) {
+    Set<Webpath> reached = new LinkedHashSet<>();
+    Deque<Webpath> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      Webpath path = pending.removeFirst();
+      if (!reached.add(path) || (stops.contains(path) && !path.equals(root))) {
+        continue;
+      }
+      prefetch(path);
+      ForkJoinTask<Document> task = documents.get(path);
+      if (task == null) {
+        continue;
+      }
+      try {
+        task.join();
+      } catch (RuntimeException e) {
+        continue;
+      }
+      pending.addAll(imports.getOrDefault(path, ImmutableList.of()));
+    }
+    return reached;
+  }
+
+  /** Cancels whatever wasn't taken, e.g. imports inside a demo-snippet. */
+  @Override
+  public void close() {
+    for (ForkJoinTask<Document> task : documents.values()) {
+      task.cancel(false);
+    }
+    documents.clear();
+  }
+
+  private final class ParseTask extends RecursiveTask<Document> {
+    private static final long serialVersionUID = 1L;
+
+    private final Webpath path;
+
+    ParseTask(Webpath path) {
+      this.path = path;
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    protected Document compute() {
+      Document document;
+      try (Metrics.Timer timer = metrics.time("parse")) {
+        document = Vulcanize.parse(store.newInputStream(path));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      List<Webpath> targets = new ArrayList<>();
+      for (Element link : document.getElementsByTag("link")) {
+        String href = link.attr("href");
+        if (!link.attr("rel").equals("import")
+            || href.isEmpty()
+            || link.attr("type").equals("css")
+            || link.attr("type").equals("text/css")
+            || uriFilter.isNoinline(href)) {
+          continue;
+        }
+        Webpath target;
+        try {
+          target = path.lookup(Webpath.get(href));
+        } catch (RuntimeException e) {
+          continue; // Let the DOM walk complain about it, if it cares.
+        }
+        targets.add(target);
+        if (transitive) {
+          prefetch(target);
+        }
+      }
+      imports.put(path, targets);
+      return document;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.javascript.jscomp.AbstractCompiler;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerInput;
+import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.JsAst;
+import com.google.javascript.jscomp.SourceAst;
+import com.google.javascript.jscomp.SourceFile;
+import com.google.javascript.rhino.InputId;
+import com.google.javascript.rhino.JSDocInfo;
+import com.google.javascript.rhino.Node;
+import com.google.javascript.rhino.StaticSourceFile.SourceKind;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Snapshot of the JavaScript files passed to every Vulcanize run, which outlives the run.
+ *
+ * <p>Every action gets the whole Closure externs bundle, base.js, deps.js and the js_library
+ * sources. In a persistent worker these are the same files request after request, so they're read,
+ * decoded and checked for {@code @externs} once, and reused for as long as the digest Bazel sends
+ * along with each work request stays the same. Externs are also parsed once, for the options of the
+ * last compile that asked, and each compile gets a copy of that AST. Without a digest, as when run
+ * from the command line, the file is just read, since hashing it to find out whether it changed
+ * would cost as much as reading it again.
+ */
+final class JsLibrarySnapshot {
+
+  private static final ConcurrentMap<Path, JsLibrarySnapshot> snapshots =
+      new ConcurrentHashMap<>();
+
+  private final ByteString digest;
+  private final String name;
+  private final String code;
+  private final boolean isExterns;
+  private volatile ParsedExterns parsedExterns;
+
+  private JsLibrarySnapshot(ByteString digest, String name, String code) {
+    this.digest = digest;
+    this.name = name;
+    this.code = code;
+    this.isExterns = code.contains("@externs");
+  }
+
+  /**
+   * Returns the snapshot of {@code path}, reading it again only if its content changed.
+   *
+   * @param digest what Bazel says the content of {@code path} hashes to, or null to read it without
+   *     keeping a snapshot
+   */
+  static JsLibrarySnapshot get(Path path, ByteString digest) throws IOException {
+    if (digest == null) {
+      return new JsLibrarySnapshot(null, path.toString(), read(path));
+    }
+    Path key = path.toAbsolutePath();
+    JsLibrarySnapshot snapshot = snapshots.get(key);
+    if (snapshot == null
+        || !snapshot.digest.equals(digest)
+        || !snapshot.name.equals(path.toString())) {
+      snapshot = new JsLibrarySnapshot(digest, path.toString(), read(path));
+      snapshots.put(key, snapshot);
+    }
+    return snapshot;
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), UTF_8);
+  }
+
+  String getCode() {
+    return code;
+  }
+
+  boolean isExterns() {
+    return isExterns;
+  }
+
+  /**
+   * Returns an input holding a copy of these externs as parsed with {@code options}, which the
+   * compiler hoists into its externs wherever it's added, or null if they can't be reused: when the
+   * file wasn't kept, isn't externs, or didn't parse cleanly.
+   *
+   * @param fingerprint what {@link ScriptCache#describe} says about {@code options}
+   */
+  CompilerInput newExternsInput(CompilerOptions options, String fingerprint) {
+    if (digest == null || !isExterns) {
+      return null;
+    }
+    ParsedExterns parsed = parsedExterns;
+    if (parsed == null || !parsed.fingerprint.equals(fingerprint)) {
+      parsed = parse(options, fingerprint);
+      parsedExterns = parsed;
+    }
+    if (parsed.root == null) {
+      return null;
+    }
+    return new CompilerInput(new CopiedAst(parsed.root, parsed.sourceFile), false);
+  }
+
+  /** Parses the externs on their own, keeping no AST if that reported anything. */
+  private ParsedExterns parse(CompilerOptions options, String fingerprint) {
+    SourceFile sourceFile = SourceFile.fromCode(name, code);
+    sourceFile.setKind(SourceKind.EXTERN);
+    Compiler compiler = new Compiler(new PrintStream(ByteStreams.nullOutputStream()));
+    compiler.initOptions(options);
+    Node root = new JsAst(sourceFile).getAstRoot(compiler);
+    JSDocInfo info = root.getJSDocInfo();
+    if (compiler.hasErrors()
+        || root.getProp(Node.PARSE_RESULTS) != null
+        || info == null
+        || !info.isExterns()) {
+      root = null;
+    }
+    return new ParsedExterns(fingerprint, sourceFile, root);
+  }
+
+  private static final class ParsedExterns {
+    final String fingerprint;
+    final SourceFile sourceFile;
+    final Node root;
+
+    ParsedExterns(String fingerprint, SourceFile sourceFile, Node root) {
+      this.fingerprint = fingerprint;
+      this.sourceFile = sourceFile;
+      this.root = root;
+    }
+  }
+
+  /** AST of an input that's copied from one parsed earlier, since compiling changes it. */
+  private static final class CopiedAst implements SourceAst {
+    private static final long serialVersionUID = 1L;
+
+    private final Node original;
+    private final InputId inputId;
+    private SourceFile sourceFile;
+    private Node root;
+
+    CopiedAst(Node original, SourceFile sourceFile) {
+      this.original = original;
+      this.inputId = new InputId(sourceFile.getName());
+      this.sourceFile = sourceFile;
+    }
+
+    @Override
+    public Node getAstRoot(AbstractCompiler compiler) {
+      if (root == null) {
+        root = original.cloneTree(true);
+        root.setInputId(inputId);
+      }
+      return root;
+    }
+
+    @Override
+    public void clearAst() {
+      root = null;
+    }
+
+    @Override
+    public InputId getInputId() {
+      return inputId;
+    }
+
+    @Override
+    public SourceFile getSourceFile() {
+      return sourceFile;
+    }
+
+    @Override
+    public void setSourceFile(SourceFile file) {
+      sourceFile = file;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phase timings and counters of a Vulcanize or Zipper run, for build dashboards.
+ *
+ * <p>Timers accumulate, so a phase that happens once per document or on several threads reports
+ * its total. Phases may nest, e.g. parsing happens during the transform. Everything is reported
+ * as one flat JSON object, in the order the names were first recorded.
+ */
+public final class Metrics {
+
+  /** Flag naming the file metrics are written to, where {@code -} means stderr. */
+  static final String FLAG = "--metrics_file=";
+
+  private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+  private final Map<String, Long> counters = new LinkedHashMap<>();
+
+  /** Times a phase until it's closed. */
+  Timer time(String phase) {
+    return new Timer(phase, System.nanoTime());
+  }
+
+  synchronized void count(String counter, long delta) {
+    counters.merge(counter, delta, Long::sum);
+  }
+
+  synchronized void set(String counter, long value) {
+    counters.put(counter, value);
+  }
+
+  synchronized long get(String counter) {
+    return counters.getOrDefault(counter, 0L);
+  }
+
+  private synchronized void addTime(String phase, long nanos) {
+    phaseNanos.merge(phase, nanos, Long::sum);
+  }
+
+  /**
+   * Starts measuring {@link #getPeakHeapBytes} over again, e.g. at the start of each action of a
+   * persistent worker, rather than since the JVM started.
+   */
+  static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * Returns an upper bound of the heap used since {@link #resetPeakHeap}, or since the JVM started.
+   *
+   * <p>It's the sum of the peak usage of every heap memory pool. The pools peak at different times,
+   * e.g. the young generation fills up and empties between collections while the old one grows,
+   * so the heap as a whole may never have used that much. It's off by at most the peaks of the
+   * pools other than the largest one.
+   */
+  static long getPeakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /** Renders the metrics as JSON, with times in milliseconds. */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder("{");
+    for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+      appendField(json, phase.getKey() + "_ms", TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+    }
+    for (Map.Entry<String, Long> counter : counters.entrySet()) {
+      appendField(json, counter.getKey(), counter.getValue());
+    }
+    appendField(json, "peak_heap_bytes", getPeakHeapBytes());
+    return json.append("\n}\n").toString();
+  }
+
+  /** Writes {@link #toJson} to {@code destination}, or to stderr if it's {@code -}. */
+  public void write(String destination) throws IOException {
+    if (destination.equals("-")) {
+      System.err.print(toJson());
+    } else {
+      Files.write(Paths.get(destination), toJson().getBytes(UTF_8));
+    }
+  }
+
+  private static void appendField(StringBuilder json, String name, long value) {
+    if (json.length() > 1) {
+      json.append(',');
+    }
+    // Names are identifiers chosen in this package, so they never need escaping.
+    json.append("\n  \"").append(name).append("\": ").append(value);
+  }
+
+  /** A running phase timer, for use in try-with-resources. */
+  final class Timer implements AutoCloseable {
+    private final String phase;
+    private final long start;
+
+    private Timer(String phase, long start) {
+      this.phase = phase;
+      this.start = start;
+    }
+
+    @Override
+    public void close() {
+      addTime(phase, System.nanoTime() - start);
+    }
+  }
+}
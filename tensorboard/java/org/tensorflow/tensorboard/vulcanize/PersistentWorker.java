@@ -0,0 +1,201 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bare-bones implementation of the Bazel persistent worker protocol.
+ *
+ * <p>When Bazel runs a tool as a worker, it passes {@code --persistent_worker} on the command line
+ * and then writes length-delimited {@code WorkRequest} protos to stdin, expecting one
+ * length-delimited {@code WorkResponse} on stdout for each of them. We only need a handful of
+ * fields, so they're decoded by hand rather than depending on Bazel's worker_protocol.proto.
+ */
+final class PersistentWorker {
+
+  static final String FLAG = "--persistent_worker";
+
+  // Field numbers from src/main/protobuf/worker_protocol.proto in the Bazel repository.
+  private static final int REQUEST_ARGUMENTS = 1;
+  private static final int REQUEST_INPUTS = 2;
+  private static final int REQUEST_ID = 3;
+  private static final int INPUT_PATH = 1;
+  private static final int INPUT_DIGEST = 2;
+  private static final int RESPONSE_EXIT_CODE = 1;
+  private static final int RESPONSE_OUTPUT = 2;
+  private static final int RESPONSE_REQUEST_ID = 3;
+
+  /**
+   * A single invocation of a tool, which returns its exit code.
+   *
+   * <p>{@code inputDigests} maps the paths of the action's inputs to the digests Bazel computed for
+   * them, which change whenever their content does. It's empty outside of a worker.
+   */
+  interface Action {
+    int run(List<String> args, Map<String, ByteString> inputDigests) throws Exception;
+  }
+
+  static boolean isRequested(String[] args) {
+    for (String arg : args) {
+      if (arg.equals(FLAG)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Serves work requests until stdin is closed.
+   *
+   * <p>Anything the action prints to stdout or stderr is captured and sent back in the response, so
+   * that it can't corrupt the protocol stream and Bazel shows it next to the failing action.
+   */
+  static void run(Action action) throws IOException {
+    run(action, System.in, System.out);
+  }
+
+  /** Serves the work requests read from {@code stdin}, writing the responses to {@code stdout}. */
+  @VisibleForTesting
+  static void run(Action action, InputStream stdin, PrintStream stdout) throws IOException {
+    PrintStream systemOut = System.out;
+    PrintStream systemErr = System.err;
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    PrintStream capture = new PrintStream(buffer, true, UTF_8.name());
+    System.setOut(capture);
+    System.setErr(capture);
+    try {
+      while (true) {
+        int firstByte = stdin.read();
+        if (firstByte == -1) {
+          return;
+        }
+        byte[] request = new byte[CodedInputStream.readRawVarint32(firstByte, stdin)];
+        ByteStreams.readFully(stdin, request);
+        List<String> args = new ArrayList<>();
+        Map<String, ByteString> inputDigests = new HashMap<>();
+        int requestId = 0;
+        CodedInputStream input = CodedInputStream.newInstance(request);
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+          switch (WireFormat.getTagFieldNumber(tag)) {
+            case REQUEST_ARGUMENTS:
+              args.add(input.readString());
+              break;
+            case REQUEST_INPUTS:
+              readInput(input.readBytes(), inputDigests);
+              break;
+            case REQUEST_ID:
+              requestId = input.readInt32();
+              break;
+            default:
+              input.skipField(tag);
+          }
+        }
+        int exitCode;
+        try {
+          exitCode = action.run(expandFlagfiles(args), inputDigests);
+        } catch (Exception e) {
+          e.printStackTrace(capture);
+          exitCode = 1;
+        }
+        capture.flush();
+        String output = new String(buffer.toByteArray(), UTF_8);
+        buffer.reset();
+        writeResponse(stdout, exitCode, output, requestId);
+      }
+    } finally {
+      System.setOut(systemOut);
+      System.setErr(systemErr);
+    }
+  }
+
+  /**
+   * Replaces {@code @path} arguments with the lines of that file.
+   *
+   * <p>Bazel always passes arguments through a params file when an action supports workers, both
+   * inside a work request and on the command line when the worker strategy isn't used.
+   */
+  static List<String> expandFlagfiles(List<String> args) throws IOException {
+    List<String> result = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("@")) {
+        for (String line : Files.readAllLines(Paths.get(arg.substring(1)), UTF_8)) {
+          if (!line.isEmpty()) {
+            result.add(line);
+          }
+        }
+      } else {
+        result.add(arg);
+      }
+    }
+    return result;
+  }
+
+  private static void readInput(ByteString message, Map<String, ByteString> inputDigests)
+      throws IOException {
+    String path = null;
+    ByteString digest = null;
+    CodedInputStream input = message.newCodedInput();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case INPUT_PATH:
+          path = input.readString();
+          break;
+        case INPUT_DIGEST:
+          digest = input.readBytes();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    if (path != null && digest != null && !digest.isEmpty()) {
+      inputDigests.put(path, digest);
+    }
+  }
+
+  private static void writeResponse(
+      PrintStream stdout, int exitCode, String output, int requestId) throws IOException {
+    int size =
+        CodedOutputStream.computeInt32Size(RESPONSE_EXIT_CODE, exitCode)
+            + CodedOutputStream.computeStringSize(RESPONSE_OUTPUT, output)
+            + CodedOutputStream.computeInt32Size(RESPONSE_REQUEST_ID, requestId);
+    CodedOutputStream response = CodedOutputStream.newInstance(stdout);
+    response.writeUInt32NoTag(size);
+    response.writeInt32(RESPONSE_EXIT_CODE, exitCode);
+    response.writeString(RESPONSE_OUTPUT, output);
+    response.writeInt32(RESPONSE_REQUEST_ID, requestId);
+    response.flush();
+    stdout.flush();
+  }
+
+  private PersistentWorker() {}
+}
@@ -0,0 +1,175 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Sends framed work requests through {@link PersistentWorker} and decodes its responses. */
+@RunWith(JUnit4.class)
+public final class PersistentWorkerTest {
+
+  private final List<List<String>> args = new ArrayList<>();
+  private final List<Map<String, ByteString>> inputDigests = new ArrayList<>();
+  private Path flagfile;
+
+  @Before
+  public void createFlagfile() throws IOException {
+    flagfile = Files.createTempFile("PersistentWorkerTest", ".params");
+    Files.write(flagfile, "--b\n\n--c\n".getBytes(UTF_8));
+  }
+
+  @After
+  public void deleteFlagfile() throws IOException {
+    Files.deleteIfExists(flagfile);
+  }
+
+  @Test
+  public void servesEachRequest() throws IOException {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    writeRequest(
+        requests,
+        7,
+        ImmutableList.of("--a", "@" + flagfile),
+        ImmutableMap.of("lib.js", ByteString.copyFromUtf8("digest"), "empty.js", ByteString.EMPTY));
+    writeRequest(requests, 8, ImmutableList.of("--fail"), ImmutableMap.of());
+    writeRequest(requests, 9, ImmutableList.of("--exit=2"), ImmutableMap.of());
+    PrintStream systemOut = System.out;
+    PrintStream systemErr = System.err;
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+    PersistentWorker.run(
+        this::run,
+        new ByteArrayInputStream(requests.toByteArray()),
+        new PrintStream(responses, true, UTF_8.name()));
+
+    assertSame(systemOut, System.out);
+    assertSame(systemErr, System.err);
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("--a", "--b", "--c"),
+            ImmutableList.of("--fail"),
+            ImmutableList.of("--exit=2")),
+        args);
+    assertEquals(ImmutableMap.of("lib.js", ByteString.copyFromUtf8("digest")), inputDigests.get(0));
+    InputStream in = new ByteArrayInputStream(responses.toByteArray());
+    Response first = readResponse(in);
+    assertEquals(7, first.requestId);
+    assertEquals(0, first.exitCode);
+    assertEquals("out\nerr\n", first.output);
+    Response second = readResponse(in);
+    assertEquals(8, second.requestId);
+    assertEquals(1, second.exitCode);
+    assertTrue(second.output, second.output.startsWith("out\n"));
+    assertTrue(second.output, second.output.contains("IllegalStateException: failed"));
+    Response third = readResponse(in);
+    assertEquals(9, third.requestId);
+    assertEquals(2, third.exitCode);
+    assertEquals("out\n", third.output);
+    assertEquals(-1, in.read());
+  }
+
+  private int run(List<String> args, Map<String, ByteString> inputDigests) {
+    this.args.add(args);
+    this.inputDigests.add(inputDigests);
+    System.out.println("out");
+    if (args.contains("--fail")) {
+      throw new IllegalStateException("failed");
+    }
+    if (args.contains("--exit=2")) {
+      return 2;
+    }
+    System.err.println("err");
+    return 0;
+  }
+
+  private static void writeRequest(
+      ByteArrayOutputStream out, int requestId, List<String> args, Map<String, ByteString> inputs)
+      throws IOException {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    CodedOutputStream request = CodedOutputStream.newInstance(message);
+    for (String arg : args) {
+      request.writeString(1, arg);
+    }
+    for (Map.Entry<String, ByteString> input : inputs.entrySet()) {
+      ByteArrayOutputStream inputMessage = new ByteArrayOutputStream();
+      CodedOutputStream coded = CodedOutputStream.newInstance(inputMessage);
+      coded.writeString(1, input.getKey());
+      coded.writeBytes(2, input.getValue());
+      coded.flush();
+      request.writeBytes(2, ByteString.copyFrom(inputMessage.toByteArray()));
+    }
+    request.writeInt32(3, requestId);
+    request.flush();
+    CodedOutputStream framed = CodedOutputStream.newInstance(out);
+    framed.writeUInt32NoTag(message.size());
+    framed.writeRawBytes(message.toByteArray());
+    framed.flush();
+  }
+
+  private static Response readResponse(InputStream in) throws IOException {
+    int firstByte = in.read();
+    byte[] message = new byte[CodedInputStream.readRawVarint32(firstByte, in)];
+    assertEquals(message.length, in.read(message));
+    Response response = new Response();
+    CodedInputStream input = CodedInputStream.newInstance(message);
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case 1:
+          response.exitCode = input.readInt32();
+          break;
+        case 2:
+          response.output = input.readString();
+          break;
+        case 3:
+          response.requestId = input.readInt32();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return response;
+  }
+
+  private static final class Response {
+    int exitCode;
+    String output = "";
+    int requestId;
+  }
+}
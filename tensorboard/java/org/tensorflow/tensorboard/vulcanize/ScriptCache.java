@@ -0,0 +1,168 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerOptions;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed cache of Closure Compiler output in a local directory.
+ *
+ * <p>Entries are keyed on a SHA-256 of the compiler version, the kind of job, the {@link
+ * CompilerOptions} it runs with, and whatever else the caller puts into {@link #newKey}, which must
+ * include the code. Each entry is a file named after its key. Entries are written atomically, so
+ * the directory may be shared by concurrent processes. Hits bump the modified time of an entry, and
+ * {@link #trim} deletes the least recently used entries until the directory fits in its budget.
+ */
+public final class ScriptCache {
+
+  // The options print some of their fields with Object.toString(), which differs between runs.
+  private static final Pattern IDENTITY_HASH_CODE = Pattern.compile("@[0-9a-f]+\\b");
+
+  private final Path directory;
+  private final long maxBytes;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  public ScriptCache(Path directory, long maxBytes) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns a hasher for computing a key, already seeded with the compiler version and kind. */
+  static Hasher newKey(String kind) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, Compiler.getReleaseVersion());
+    putString(hasher, kind);
+    return hasher;
+  }
+
+  /**
+   * Returns a hasher like {@link #newKey(String)} that's also seeded with every option in {@code
+   * options}, so that changing how a job is configured can't serve output of the old
+   * configuration.
+   */
+  static Hasher newKey(String kind, CompilerOptions options) {
+    return putString(newKey(kind), describe(options));
+  }
+
+  /** Returns every option in {@code options}, spelled the same from one run to the next. */
+  static String describe(CompilerOptions options) {
+    return IDENTITY_HASH_CODE.matcher(options.toString()).replaceAll("@");
+  }
+
+  /** Adds a length-prefixed string to a key, so that adjacent strings can't run together. */
+  static Hasher putString(Hasher hasher, String value) {
+    return hasher.putInt(value.length()).putString(value, UTF_8);
+  }
+
+  /** Returns the cached value for {@code key}, or null on a miss. */
+  String get(HashCode key) {
+    Path entry = directory.resolve(key.toString());
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(entry);
+    } catch (IOException e) {
+      // A missing entry, or one that was evicted by another process before we could read it.
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    try {
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // It'll just look older than it is.
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /** Stores a value, which is best effort: failing to write the cache doesn't fail the build. */
+  void put(HashCode key, String value) {
+    try {
+      Path temp = Files.createTempFile(directory, ".", ".tmp");
+      try {
+        Files.write(temp, value.getBytes(UTF_8));
+        Files.move(
+            temp,
+            directory.resolve(key.toString()),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      System.err.println("WARNING: Failed to write " + key + " to cache: " + e);
+    }
+  }
+
+  /** Deletes the least recently used entries until the cache fits in its size budget. */
+  public void trim() throws IOException {
+    List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>();
+    long total = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path entry : stream) {
+        BasicFileAttributes attrs;
+        try {
+          attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (attrs.isRegularFile()) {
+          entries.add(Maps.immutableEntry(entry, attrs));
+          total += attrs.size();
+        }
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    entries.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+    for (Map.Entry<Path, BasicFileAttributes> entry : entries) {
+      if (total <= maxBytes) {
+        break;
+      }
+      Files.deleteIfExists(entry.getKey());
+      total -= entry.getValue().size();
+    }
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+}
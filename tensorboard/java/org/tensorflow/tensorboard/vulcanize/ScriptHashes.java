@@ -0,0 +1,153 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import io.bazel.rules.closure.Webpath;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.HashMap;
+import java.util.Map;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+/**
+ * Collects the CSP hashes of the {@code <script>} elements of a document, in document order.
+ *
+ * <p>These are base64 SHA-256 digests of the UTF-8 script content, or of the file a script's src
+ * refers to. Content is streamed into the hasher, so neither inline scripts nor files are copied
+ * into new strings along the way, and each file is only hashed once. Files come from the {@link
+ * WebfileStore}, so one that was already read for inlining isn't read again.
+ */
+final class ScriptHashes {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final WebfileStore store;
+  private final Map<Webpath, HashCode> fileHashes = new HashMap<>();
+  private final ImmutableList.Builder<String> hashes = ImmutableList.builder();
+  private final CharsetEncoder encoder = UTF_8.newEncoder();
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+  ScriptHashes(WebfileStore store) {
+    this.store = store;
+  }
+
+  /** Adds the hash of a script, whichever kind it is. */
+  void add(Element script) throws FileNotFoundException, IOException {
+    if (!script.attr("src").isEmpty()) {
+      addSrc(script);
+      return;
+    }
+    Hasher hasher = newInlineHasher();
+    for (Node child : script.childNodes()) {
+      if (child instanceof SlicedDataNode) {
+        for (CharSequence slice : ((SlicedDataNode) child).getSlices()) {
+          putUtf8(hasher, slice);
+        }
+      } else if (child instanceof DataNode) {
+        putUtf8(hasher, ((DataNode) child).getWholeData());
+      } else {
+        putUtf8(hasher, child.outerHtml());
+      }
+    }
+    addInline(hasher);
+  }
+
+  /** Returns a hasher for content that's being written into an inline script. */
+  Hasher newInlineHasher() {
+    return Hashing.sha256().newHasher();
+  }
+
+  void addInline(Hasher hasher) {
+    hashes.add(encode(hasher.hash()));
+  }
+
+  /**
+   * Adds the hash of the file a remaining {@code <script src>} refers to, unless it's a remote
+   * resource, which can only be warned about.
+   */
+  void addSrc(Element script) throws FileNotFoundException, IOException {
+    // script element that remains are the ones with src that is absolute or annotated with
+    // `jscomp-ignore`. They must resolve from the root because those srcs are rootified.
+    String src = script.attr("src");
+    Webpath webpathSrc = Webpath.get(src);
+    Webpath webpath = Webpath.get("/").resolve(Webpath.get(src)).normalize();
+    if (Vulcanize.isAbsolutePath(webpathSrc)) {
+      System.err.println(
+          "WARNING: "
+              + webpathSrc
+              + " refers to a remote resource. Please add it to CSP manually. Detail: "
+              + script.outerHtml());
+      return;
+    } else if (!store.contains(webpath)) {
+      throw new FileNotFoundException(
+          "Expected webfiles for " + webpath + " to exist. Related: " + script.outerHtml());
+    }
+    HashCode hash = fileHashes.get(webpath);
+    if (hash == null) {
+      // Files are hashed as they are on disk, which is the same as hashing their decoded content
+      // for anything that's valid UTF-8.
+      hash = Hashing.sha256().hashBytes(store.getBytes(webpath));
+      fileHashes.put(webpath, hash);
+    }
+    hashes.add(encode(hash));
+  }
+
+  ImmutableList<String> build() {
+    return hashes.build();
+  }
+
+  /**
+   * Feeds the UTF-8 encoding of {@code content} to a hasher a buffer at a time, rather than making
+   * a byte array copy of what could be a multi-megabyte script.
+   */
+  void putUtf8(Hasher hasher, CharSequence content) {
+    CharBuffer chars = CharBuffer.wrap(content);
+    encoder.reset();
+    while (true) {
+      CoderResult result = encoder.encode(chars, buffer, true);
+      if (result.isUnderflow()) {
+        result = encoder.flush(buffer);
+      }
+      buffer.flip();
+      hasher.putBytes(buffer);
+      buffer.clear();
+      if (result.isUnderflow()) {
+        return;
+      }
+      if (result.isError()) {
+        // Unpaired surrogates are encoded as '?', like String.getBytes() does.
+        chars.position(chars.position() + result.length());
+        hasher.putByte((byte) '?');
+      }
+    }
+  }
+
+  private static String encode(HashCode hash) {
+    return BaseEncoding.base64().encode(hash.asBytes());
+  }
+}
@@ -0,0 +1,267 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.javascript.jscomp.CheckLevel;
+import com.google.javascript.jscomp.DiagnosticGroup;
+import com.google.javascript.jscomp.DiagnosticGroups;
+import com.google.javascript.jscomp.DiagnosticType;
+import com.google.javascript.jscomp.JSError;
+import com.google.javascript.jscomp.WarningsGuard;
+import io.bazel.rules.closure.Webpath;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which Closure Compiler diagnostics Vulcanize turns off, including the ones suppressed by
+ * {@code <script jscomp-suppress="group1 group2" ...>} tags.
+ *
+ * <p>A decision only depends on the source name, the diagnostic type and whether the diagnostic
+ * defaults to a warning, and big builds report the same few combinations tens of thousands of
+ * times. So what depends on the source alone is worked out once per source, and each decision once
+ * per combination, in maps that are safe to use from the compiler's threads. Every diagnostic
+ * that's turned off is counted under the rule that did it, which {@link #report} adds to the
+ * metrics, rules that never fired included.
+ */
+final class ScriptWarningsGuard extends WarningsGuard {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Pattern IGNORE_PATHS_PATTERN =
+      Pattern.compile("/(?:polymer|marked-element)/.*");
+
+  private static final String TYPESCRIPT = "typescript";
+  private static final String POLYMER_ELEMENTS = "polymer_elements";
+  private static final String EXTERNS = "externs";
+  private static final String IGNORE_PATHS = "ignore_paths";
+  private static final String MULTIPLY_DECLARED = "tf_vz_multiply_declared";
+  private static final String POLYMER_BEHAVIORS = "polymer_behaviors";
+  private static final String JSCOMP_SUPPRESS = "jscomp_suppress";
+
+  private static final ImmutableList<String> RULES =
+      ImmutableList.of(
+          TYPESCRIPT,
+          POLYMER_ELEMENTS,
+          EXTERNS,
+          IGNORE_PATHS,
+          MULTIPLY_DECLARED,
+          POLYMER_BEHAVIORS,
+          JSCOMP_SUPPRESS);
+
+  private static final Decision NO_OPINION = new Decision(null, null);
+
+  private final Set<Webpath> webfiles;
+  private final Multimap<Webpath, String> suppressions;
+  private final ImmutableMultimap<DiagnosticType, String> diagnosticGroups =
+      initDiagnosticGroups();
+  private final ConcurrentMap<String, Source> sources = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> suppressed = new ConcurrentHashMap<>();
+  private final Set<String> usedSuppressions = ConcurrentHashMap.newKeySet();
+  private final LongAdder checked = new LongAdder();
+
+  /**
+   * @param webfiles every webpath of the build, which is how transpiled TypeScript is recognized
+   * @param suppressions codes and diagnostic groups from jscomp-suppress, by script, where
+   *     {@code *} means everything
+   */
+  ScriptWarningsGuard(Set<Webpath> webfiles, Multimap<Webpath, String> suppressions) {
+    this.webfiles = webfiles;
+    this.suppressions = suppressions;
+  }
+
+  @Override
+  public CheckLevel level(JSError error) {
+    String sourceName = error.getSourceName();
+    if (sourceName == null) {
+      return null;
+    }
+    checked.increment();
+    Source source = sources.computeIfAbsent(sourceName, Source::new);
+    Map<DiagnosticType, Decision> decisions =
+        error.getDefaultLevel() == CheckLevel.WARNING ? source.warnings : source.others;
+    Decision decision =
+        decisions.computeIfAbsent(
+            error.getType(),
+            type -> decide(source, type, error.getDefaultLevel() == CheckLevel.WARNING));
+    if (decision.rule != null) {
+      suppressed.computeIfAbsent(decision.rule, rule -> new LongAdder()).increment();
+    }
+    return decision.level;
+  }
+
+  /**
+   * Adds how many diagnostics were checked and suppressed, by rule, and how many jscomp-suppress
+   * entries suppressed nothing at all.
+   */
+  void report(Metrics metrics) {
+    metrics.count("diagnostics_checked", checked.sum());
+    for (String rule : RULES) {
+      LongAdder count = suppressed.get(rule);
+      metrics.count("diagnostics_suppressed_" + rule, count == null ? 0 : count.sum());
+    }
+    metrics.count("jscomp_suppress_unused", suppressions.size() - usedSuppressions.size());
+  }
+
+  private Decision decide(Source source, DiagnosticType type, boolean isWarning) {
+    if (isWarning && source.warningRule != null) {
+      return new Decision(CheckLevel.OFF, source.warningRule);
+    }
+    if (source.level != null) {
+      return new Decision(source.level, source.rule);
+    }
+    if (source.isTfOrVz && type.key.equals("JSC_VAR_MULTIPLY_DECLARED_ERROR")) {
+      // TODO(@jart): Remove when tf/vz components/plugins are ES6 modules.
+      return new Decision(CheckLevel.OFF, MULTIPLY_DECLARED);
+    }
+    if (type.key.equals("JSC_POLYMER_UNQUALIFIED_BEHAVIOR")
+        || type.key.equals("JSC_POLYMER_UNANNOTATED_BEHAVIOR")) {
+      // TODO(@jart): What is wrong with this thing?
+      return new Decision(CheckLevel.OFF, POLYMER_BEHAVIORS);
+    }
+    Collection<String> codes = source.getCodes();
+    if (codes.contains("*")) {
+      return suppressedBy(source, "*");
+    }
+    if (codes.contains(type.key)) {
+      return suppressedBy(source, type.key);
+    }
+    for (String group : diagnosticGroups.get(type)) {
+      if (codes.contains(group)) {
+        return suppressedBy(source, group);
+      }
+    }
+    return NO_OPINION;
+  }
+
+  private Decision suppressedBy(Source source, String code) {
+    usedSuppressions.add(source.getWebpath() + " " + code);
+    return new Decision(CheckLevel.OFF, JSCOMP_SUPPRESS);
+  }
+
+  private boolean isTranspiledTypescriptCode(String path) {
+    // We perform this check by looking for a concomitant .d.ts webfile which is generated by the
+    // TypeScript compiler. Ideally we would use SourceExcerptProvider to determine the original
+    // source name, but WarningsGuard objects do not appear to have access to that.
+    if (!path.endsWith(".js")) {
+      return false;
+    }
+    return webfiles.contains(Webpath.get(path.substring(0, path.length() - 3) + ".d.ts"));
+  }
+
+  private static ImmutableMultimap<DiagnosticType, String> initDiagnosticGroups() {
+    Multimap<DiagnosticType, String> builder = HashMultimap.create();
+    for (Map.Entry<String, DiagnosticGroup> group :
+        DiagnosticGroups.getRegisteredGroups().entrySet()) {
+      for (DiagnosticType type : group.getValue().getTypes()) {
+        builder.put(type, group.getKey());
+      }
+    }
+    return ImmutableMultimap.copyOf(builder);
+  }
+
+  /** What a source name implies, whatever the diagnostic. */
+  private final class Source {
+    final String name;
+    final ConcurrentMap<DiagnosticType, Decision> warnings = new ConcurrentHashMap<>();
+    final ConcurrentMap<DiagnosticType, Decision> others = new ConcurrentHashMap<>();
+    /** Rule that turns off diagnostics that default to warnings, or null. */
+    final String warningRule;
+    /** Level for every diagnostic, or null if it depends on the diagnostic type. */
+    final CheckLevel level;
+    final String rule;
+    final boolean isTfOrVz;
+    private volatile Webpath webpath;
+    private volatile Collection<String> codes;
+
+    Source(String name) {
+      this.name = name;
+      if (isTranspiledTypescriptCode(name)) {
+        // Let's put our faith in the TypeScript compiler. At least until we have tsickle as part of
+        // our build process.
+        warningRule = TYPESCRIPT;
+      } else if (name.startsWith("/iron-")
+          || name.startsWith("/neon-")
+          || name.startsWith("/paper-")) {
+        // Suppress warnings in the Polymer standard libraries.
+        warningRule = POLYMER_ELEMENTS;
+      } else {
+        warningRule = null;
+      }
+      if (name.startsWith("javascript/externs")
+          || name.contains("com_google_javascript_closure_compiler_externs")) {
+        // TODO(@jart): Figure out why these "mismatch of the removeEventListener property on
+        //             type" warnings are showing up.
+        //             https://github.com/google/closure-compiler/pull/1959
+        level = CheckLevel.OFF;
+        rule = EXTERNS;
+      } else if (name.endsWith("externs/webcomponents-externs.js")) {
+        // TODO(stephanwlee): Figure out why above externs cause variable
+        // declare issue. Seems to do with usage of `let` in Polymer 2.x
+        // branch.
+        // Ref: #2425.
+        level = CheckLevel.WARNING;
+        rule = null;
+      } else if (IGNORE_PATHS_PATTERN.matcher(name).matches()) {
+        level = CheckLevel.OFF;
+        rule = IGNORE_PATHS;
+      } else {
+        level = null;
+        rule = null;
+      }
+      isTfOrVz = name.startsWith("/tf-") || name.startsWith("/vz-");
+    }
+
+    /** Returns the name as a webpath, which is only parsed if a decision needs it. */
+    Webpath getWebpath() {
+      Webpath result = webpath;
+      if (result == null) {
+        result = Webpath.get(name);
+        webpath = result;
+      }
+      return result;
+    }
+
+    /** Returns the jscomp-suppress codes of the source. */
+    Collection<String> getCodes() {
+      Collection<String> result = codes;
+      if (result == null) {
+        result = ImmutableSet.copyOf(suppressions.get(getWebpath()));
+        codes = result;
+      }
+      return result;
+    }
+  }
+
+  private static final class Decision {
+    final CheckLevel level;
+    /** Rule that turned the diagnostic off, or null. */
+    final String rule;
+
+    Decision(CheckLevel level, String rule) {
+      this.level = level;
+      this.rule = rule;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.jsoup.nodes.DataNode;
+
+/**
+ * Script content made of ranges of other strings, such as the compiled JS blob.
+ *
+ * <p>The ranges aren't copied: {@link HtmlStreamWriter} and {@link ScriptHashes} read them in
+ * place, so the output of Closure Compiler only exists once while it's being split back into the
+ * {@code <script>} tags and combined again. Anything else that asks for the data, e.g. jsoup when
+ * it prints the document with {@code --stream_output=false}, gets it concatenated by {@link
+ * #getWholeData()}.
+ */
+final class SlicedDataNode extends DataNode {
+
+  private final List<String> sources = new ArrayList<>();
+  private final List<int[]> ranges = new ArrayList<>();
+  private int length;
+
+  SlicedDataNode(String baseUri) {
+    super("", baseUri);
+  }
+
+  /** Appends {@code source} from {@code start} up to {@code end}, without copying it. */
+  SlicedDataNode append(String source, int start, int end) {
+    checkPositionIndexes(start, end, source.length());
+    if (start < end) {
+      sources.add(source);
+      ranges.add(new int[] {start, end});
+      length += end - start;
+    }
+    return this;
+  }
+
+  SlicedDataNode append(String source) {
+    return append(source, 0, source.length());
+  }
+
+  /** Appends the content of another node, sharing its slices if it has any. */
+  SlicedDataNode append(DataNode node) {
+    if (!(node instanceof SlicedDataNode)) {
+      return append(node.getWholeData());
+    }
+    SlicedDataNode other = (SlicedDataNode) node;
+    for (int i = 0; i < other.sources.size(); i++) {
+      int[] range = other.ranges.get(i);
+      append(other.sources.get(i), range[0], range[1]);
+    }
+    return this;
+  }
+
+  /** Returns read-only views of the slices, in order. */
+  List<CharSequence> getSlices() {
+    List<CharSequence> slices = new ArrayList<>(sources.size());
+    for (int i = 0; i < sources.size(); i++) {
+      int[] range = ranges.get(i);
+      slices.add(CharBuffer.wrap(sources.get(i), range[0], range[1]));
+    }
+    return slices;
+  }
+
+  /** Writes the slices to {@code out}, straight from the strings they're part of. */
+  void writeTo(Writer out) throws IOException {
+    for (int i = 0; i < sources.size(); i++) {
+      int[] range = ranges.get(i);
+      out.write(sources.get(i), range[0], range[1] - range[0]);
+    }
+  }
+
+  @Override
+  public String getWholeData() {
+    if (sources.size() == 1 && ranges.get(0)[0] == 0 && length == sources.get(0).length()) {
+      return sources.get(0);
+    }
+    StringBuilder data = new StringBuilder(length);
+    for (int i = 0; i < sources.size(); i++) {
+      int[] range = ranges.get(i);
+      data.append(sources.get(i), range[0], range[1]);
+    }
+    return data.toString();
+  }
+
+  @Override
+  public SlicedDataNode setWholeData(String data) {
+    sources.clear();
+    ranges.clear();
+    length = 0;
+    return append(data);
+  }
+}
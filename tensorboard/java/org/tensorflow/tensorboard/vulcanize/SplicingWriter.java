@@ -0,0 +1,128 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes UTF-8 to a file, leaving room for text that's only known once everything else has been
+ * written, such as the licenses of a vulcanized document, which go into its first comment.
+ *
+ * <p>Whatever comes after the {@link #mark} is spooled to a temporary file next to the output, and
+ * copied after the text given to {@link #finish}, so none of it is held in memory.
+ */
+final class SplicingWriter extends Writer {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path output;
+  private final FileChannel channel;
+  private final Writer head;
+  private Path spoolPath;
+  private FileChannel spool;
+  private Writer out;
+
+  SplicingWriter(Path output) throws IOException {
+    this.output = output;
+    channel =
+        FileChannel.open(
+            output,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    head = newWriter(channel);
+    out = head;
+  }
+
+  /** Marks where the text given to {@link #finish} goes, which can only be done once. */
+  void mark() throws IOException {
+    checkState(spool == null, "Already marked");
+    head.flush();
+    spoolPath = Files.createTempFile(output.toAbsolutePath().getParent(), ".splice", ".tmp");
+    spool = FileChannel.open(spoolPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    out = newWriter(spool);
+  }
+
+  boolean isMarked() {
+    return spool != null;
+  }
+
+  /** Writes {@code text} at the mark, if there is one, and closes the output. */
+  void finish(String text) throws IOException {
+    if (spool == null) {
+      close();
+      return;
+    }
+    try {
+      out.flush();
+      head.write(text);
+      head.flush();
+      long size = spool.size();
+      for (long position = 0; position < size; ) {
+        position += spool.transferTo(position, size - position, channel);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  @Override
+  public void write(char[] buffer, int offset, int length) throws IOException {
+    out.write(buffer, offset, length);
+  }
+
+  @Override
+  public void write(String text, int offset, int length) throws IOException {
+    out.write(text, offset, length);
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    out.write(c);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /** Closes the output and deletes the spool, without writing anything at the mark. */
+  @Override
+  @SuppressWarnings("try")
+  public void close() throws IOException {
+    try (FileChannel closingChannel = channel;
+        Writer closingHead = head) {
+      if (spool != null) {
+        spool.close();
+        Files.deleteIfExists(spoolPath);
+      }
+    }
+  }
+
+  private static Writer newWriter(FileChannel channel) {
+    return new BufferedWriter(
+        Channels.newWriter(channel, UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+  }
+}
@@ -0,0 +1,252 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+/**
+ * Shrinks the {@code <style>} elements of a vulcanized document, both the inline ones and the
+ * stylesheets that were inlined into them.
+ *
+ * <p>Minification is deliberately conservative: comments go, except for {@code /*!} and
+ * {@code @license} ones, whitespace runs become one space, and the space around {@code { } ; ,} is
+ * dropped. Strings, escapes and {@code url(...)} are copied as they are, and so are styles with
+ * Polymer bindings in them. Nothing is reordered, so the cascade can't change.
+ *
+ * <p>A style is also removed if a later one in the same scope has the same attributes and the
+ * same content, compared by hash, since the later copy applies the same rules again after
+ * whatever came in between, and so wins wherever the earlier one would have. The scope is the
+ * document, or the template or dom-module a style is in, since Polymer turns those into the
+ * styles of a shadow root and identical styles of different elements can't be merged. Styles
+ * inside a custom-style are left alone, so none of them ends up empty.
+ */
+final class StyleMinifier {
+
+  private final Metrics metrics;
+  private final Map<Element, Map<HashCode, Element>> scopes = new IdentityHashMap<>();
+  private long minified;
+  private long deduplicated;
+  private long bytesSaved;
+
+  StyleMinifier(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** Minifies and deduplicates the styles of {@code document}, then adds what it saved. */
+  void process(Document document) {
+    scopes.clear();
+    for (Element element : document.getAllElements()) {
+      if (!element.nodeName().equals("style")
+          || !isCss(element)
+          || isInsideDemoSnippet(element)) {
+        continue;
+      }
+      DataNode data = getData(element);
+      if (data == null) {
+        continue;
+      }
+      String css = data.getWholeData();
+      String result = minify(css);
+      if (!result.equals(css)) {
+        data.setWholeData(result);
+        minified++;
+        bytesSaved += css.length() - result.length();
+      }
+      if (element.parent().nodeName().equals("custom-style")) {
+        continue;
+      }
+      HashCode key =
+          Hashing.sha256()
+              .newHasher()
+              .putString(element.attributes().html(), UTF_8)
+              .putByte((byte) 0)
+              .putString(result, UTF_8)
+              .hash();
+      Element previous =
+          scopes.computeIfAbsent(getScope(element), scope -> new HashMap<>()).put(key, element);
+      if (previous != null) {
+        bytesSaved += previous.outerHtml().length();
+        previous.remove();
+        deduplicated++;
+      }
+    }
+  }
+
+  /** Adds the totals of every document processed so far to the metrics. */
+  void report() {
+    metrics.count("styles_minified", minified);
+    metrics.count("styles_deduplicated", deduplicated);
+    metrics.count("style_bytes_saved", bytesSaved);
+  }
+
+  /** Returns {@code css} minified, or as it is if it has Polymer bindings in it. */
+  static String minify(String css) {
+    if (css.contains("{{") || css.contains("[[")) {
+      return css;
+    }
+    StringBuilder out = new StringBuilder(css.length());
+    boolean space = false;
+    int i = 0;
+    while (i < css.length()) {
+      char c = css.charAt(i);
+      int end;
+      if (c == '/' && css.startsWith("/*", i)) {
+        end = css.indexOf("*/", i + 2);
+        if (end < 0) {
+          // An unterminated comment runs to the end, which is better left alone.
+          end = css.length();
+        } else {
+          end += 2;
+          if (!css.startsWith("/*!", i) && !containsLicense(css, i, end)) {
+            // A comment separates tokens, just like whitespace.
+            space = true;
+            i = end;
+            continue;
+          }
+        }
+      } else if (isWhitespace(c)) {
+        space = true;
+        i++;
+        continue;
+      } else if (c == '"' || c == '\'') {
+        end = skipString(css, i);
+      } else if (c == '\\') {
+        end = Math.min(i + 2, css.length());
+      } else if (c == '(' && endsWithUrl(out)) {
+        end = skipUrl(css, i);
+      } else {
+        end = i + 1;
+      }
+      if (space && out.length() > 0 && !isSeparator(c) && !isSeparator(lastChar(out), c)) {
+        out.append(' ');
+      }
+      space = false;
+      out.append(css, i, end);
+      i = end;
+    }
+    return out.toString();
+  }
+
+  private static boolean isCss(Element style) {
+    String type = style.attr("type");
+    return type.isEmpty() || type.equals("text/css");
+  }
+
+  private static boolean isInsideDemoSnippet(Element element) {
+    for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+      if (parent.nodeName().equals("demo-snippet")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the nearest template or dom-module around {@code element}, or null. */
+  private static Element getScope(Element element) {
+    for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+      if (parent.nodeName().equals("template") || parent.nodeName().equals("dom-module")) {
+        return parent;
+      }
+    }
+    return null;
+  }
+
+  /** Returns the only child of a style, if it's data. */
+  private static DataNode getData(Element style) {
+    if (style.childNodeSize() != 1) {
+      return null;
+    }
+    Node child = style.childNode(0);
+    return child instanceof DataNode ? (DataNode) child : null;
+  }
+
+  private static int skipString(String css, int start) {
+    char quote = css.charAt(start);
+    int i = start + 1;
+    while (i < css.length()) {
+      char c = css.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c == quote || c == '\n') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return css.length();
+  }
+
+  private static int skipUrl(String css, int start) {
+    int i = start + 1;
+    while (i < css.length()) {
+      char c = css.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c == '"' || c == '\'') {
+        i = skipString(css, i);
+      } else if (c == ')') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return css.length();
+  }
+
+  private static boolean containsLicense(String css, int start, int end) {
+    for (int i = css.indexOf('@', start); i >= 0 && i < end; i = css.indexOf('@', i + 1)) {
+      if (css.startsWith("@license", i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean endsWithUrl(StringBuilder out) {
+    int n = out.length();
+    return n >= 3
+        && Character.toLowerCase(out.charAt(n - 3)) == 'u'
+        && Character.toLowerCase(out.charAt(n - 2)) == 'r'
+        && Character.toLowerCase(out.charAt(n - 1)) == 'l';
+  }
+
+  private static char lastChar(StringBuilder out) {
+    return out.charAt(out.length() - 1);
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == '{' || c == '}' || c == ';' || c == ',';
+  }
+
+  // Polymer only recognizes a custom property after whitespace, '{' or ';', so one that follows a
+  // mixin like "--a: {...}" without a semicolon has to keep its space.
+  private static boolean isSeparator(char previous, char next) {
+    return isSeparator(previous) && !(previous == '}' && next == '-');
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.protobuf.TextFormat;
+import io.bazel.rules.closure.Webpath;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates a web_library-like tree of HTML imports on disk, for benchmarks and tests.
+ *
+ * <p>Documents are arranged in {@code depth} layers below {@code /synthetic/index.html}, which
+ * imports the first layer. Every document imports {@code fanOut} documents of the next layer,
+ * round-robin, so documents are shared between importers the way Polymer components are. Each
+ * document can come with a script, inline or as a separate file, a stylesheet and a license
+ * comment.
+ */
+final class SyntheticWebfiles implements AutoCloseable {
+
+  static final Webpath INDEX = Webpath.get("/synthetic/index.html");
+
+  private static final int LICENSES = 5;
+
+  private final Path directory;
+  private final Path manifestPath;
+  private final Webfiles manifest;
+
+  private SyntheticWebfiles(Path directory, Path manifestPath, Webfiles manifest) {
+    this.directory = directory;
+    this.manifestPath = manifestPath;
+    this.manifest = manifest;
+  }
+
+  Path getDirectory() {
+    return directory;
+  }
+
+  /** Returns the path of the manifest in protobuf text format, like the ones Vulcanize reads. */
+  Path getManifestPath() {
+    return manifestPath;
+  }
+
+  Webfiles getManifest() {
+    return manifest;
+  }
+
+  /** Returns a JavaScript file of roughly {@code bytes} that Closure Compiler accepts. */
+  static String generateScript(int id, int bytes) {
+    StringBuilder code = new StringBuilder();
+    code.append(String.format("var synthetic%d = {};\n", id));
+    for (int i = 0; code.length() < bytes; i++) {
+      code.append(
+          String.format(
+              "/** @param {number} x @return {number} */\n"
+                  + "synthetic%d.f%d = function(x) {\n"
+                  + "  var result = x * %d + %d;\n"
+                  + "  return result > 100 ? result - 100 : result;\n"
+                  + "};\n",
+              id, i, i, id));
+    }
+    return code.toString();
+  }
+
+  /** Deletes the generated files. */
+  @Override
+  public void close() throws IOException {
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /** Builder for {@link SyntheticWebfiles}. */
+  static final class Builder {
+    private int documents = 20;
+    private int depth = 3;
+    private int fanOut = 3;
+    private int scriptBytes = 2048;
+    private boolean srcScripts;
+    private boolean stylesheets = true;
+    private boolean licenses = true;
+    private boolean exports;
+
+    private Builder() {}
+
+    Builder setDocuments(int documents) {
+      checkArgument(documents > 0, "documents must be positive");
+      this.documents = documents;
+      return this;
+    }
+
+    Builder setDepth(int depth) {
+      checkArgument(depth > 0, "depth must be positive");
+      this.depth = depth;
+      return this;
+    }
+
+    Builder setFanOut(int fanOut) {
+      checkArgument(fanOut > 0, "fanOut must be positive");
+      this.fanOut = fanOut;
+      return this;
+    }
+
+    Builder setScriptBytes(int scriptBytes) {
+      this.scriptBytes = scriptBytes;
+      return this;
+    }
+
+    /** Whether scripts are separate files referred to by src, rather than inline. */
+    Builder setSrcScripts(boolean srcScripts) {
+      this.srcScripts = srcScripts;
+      return this;
+    }
+
+    Builder setStylesheets(boolean stylesheets) {
+      this.stylesheets = stylesheets;
+      return this;
+    }
+
+    Builder setLicenses(boolean licenses) {
+      this.licenses = licenses;
+      return this;
+    }
+
+    /**
+     * Whether each script exports its object, so ADVANCED_OPTIMIZATIONS keeps the code instead of
+     * removing all of it, and compiles to something of the size of its input.
+     */
+    Builder setExports(boolean exports) {
+      this.exports = exports;
+      return this;
+    }
+
+    /** Writes the webfiles and their manifest to a new temporary directory. */
+    SyntheticWebfiles build() throws IOException {
+      int layers = Math.min(depth, documents);
+      Path directory = Files.createTempDirectory("synthetic_webfiles");
+      Webfiles.Builder manifest = Webfiles.newBuilder();
+      // Layer i holds the documents whose index is i modulo the number of layers, which keeps the
+      // layers the same size give or take one.
+      for (int id = documents - 1; id >= 0; id--) {
+        int layer = id % layers;
+        StringBuilder html = new StringBuilder();
+        if (licenses) {
+          html.append(
+              String.format(
+                  "<!--\n@license\nSynthetic license %d, as seen in the wild.\n-->\n",
+                  id % LICENSES));
+        }
+        if (layer + 1 < layers) {
+          int nextLayerSize = layerSize(layer + 1, layers);
+          for (int k = 0; k < fanOut && k < nextLayerSize; k++) {
+            int child = ((id / layers) * fanOut + k) % nextLayerSize * layers + layer + 1;
+            html.append(String.format("<link rel=\"import\" href=\"doc%d.html\">\n", child));
+          }
+        }
+        if (stylesheets) {
+          html.append(String.format("<link rel=\"stylesheet\" href=\"doc%d.css\">\n", id));
+          String css =
+              String.format(
+                  ".doc-%d { color: #%06x; margin: %dpx; }\n",
+                  id, (id * 2654435) & 0xffffff, id % 16);
+          write(directory, manifest, String.format("doc%d.css", id), css);
+        }
+        html.append(String.format("<dom-module id=\"doc-%d\">\n<template>\n", id));
+        html.append(
+            String.format("<div class=\"doc-%d\">Document %d &amp; friends</div>\n", id, id));
+        html.append("</template>\n");
+        String script = generateScript(id, scriptBytes);
+        if (exports) {
+          script += String.format("this['synthetic%d'] = synthetic%d;\n", id, id);
+        }
+        if (srcScripts) {
+          write(directory, manifest, String.format("doc%d.js", id), script);
+          html.append(String.format("<script src=\"doc%d.js\"></script>\n", id));
+        } else {
+          html.append("<script>\n").append(script).append("</script>\n");
+        }
+        html.append("</dom-module>\n");
+        write(directory, manifest, String.format("doc%d.html", id), html.toString());
+      }
+      StringBuilder index = new StringBuilder("<!doctype html>\n<html>\n<head>\n");
+      for (int i = 0; i < layerSize(0, layers); i++) {
+        index.append(String.format("<link rel=\"import\" href=\"doc%d.html\">\n", i * layers));
+      }
+      index.append("</head>\n<body>\n</body>\n</html>\n");
+      write(directory, manifest, "index.html", index.toString());
+      Webfiles webfiles = manifest.build();
+      Path manifestPath = directory.resolve("synthetic.pbtxt");
+      Files.write(manifestPath, TextFormat.printToString(webfiles).getBytes(UTF_8));
+      return new SyntheticWebfiles(directory, manifestPath, webfiles);
+    }
+
+    private int layerSize(int layer, int layers) {
+      return (documents - layer + layers - 1) / layers;
+    }
+
+    private static void write(
+        Path directory, Webfiles.Builder manifest, String name, String content)
+        throws IOException {
+      Path path = directory.resolve(name);
+      Files.write(path, content.getBytes(UTF_8));
+      manifest.addSrc(
+          WebfilesSource.newBuilder()
+              .setPath(path.toString())
+              .setWebpath(INDEX.resolveSibling(name).toString()));
+    }
+  }
+}
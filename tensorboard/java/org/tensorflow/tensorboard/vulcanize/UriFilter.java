@@ -0,0 +1,161 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which URIs Vulcanize leaves alone, for every href and src of every inlined document.
+ *
+ * <p>The path_regexs_for_noinline patterns are joined into one alternation, so a URI is matched
+ * once no matter how many patterns there are, and the built-in rules are checked in a single scan
+ * of the URI. Documents refer to the same few URIs over and over, so both answers are remembered
+ * per distinct URI. This is safe to use from several threads, which lets {@link ImportPrefetcher}
+ * share the answers with the DOM walk.
+ */
+final class UriFilter {
+
+  private static final int NOINLINE = 1;
+  private static final int IGNORED = 2;
+
+  // Patterns that can't be wrapped in a group and joined with others without changing what they
+  // match: backreferences would point to other groups, and \Q or a comments flag would swallow the
+  // closing parenthesis.
+  private static final Pattern UNSAFE_TO_COMBINE =
+      Pattern.compile("\\\\(?:[0-9]|k<|Q)|\\(\\?[a-zA-Z-]*x");
+
+  private final ImmutableList<Pattern> noinline;
+  private final ConcurrentMap<String, Integer> results = new ConcurrentHashMap<>();
+
+  /** @param noinline patterns of hrefs that are left as is, which match if they're found */
+  UriFilter(List<Pattern> noinline) {
+    this.noinline = combine(noinline);
+  }
+
+  /** Returns true if {@code href} matches any of the path_regexs_for_noinline patterns. */
+  boolean isNoinline(String href) {
+    return (getResult(href) & NOINLINE) != 0;
+  }
+
+  /**
+   * Returns true if {@code uri} can't refer to a webfile, e.g. because it's an anchor, a directory,
+   * another scheme or a Polymer binding.
+   */
+  boolean isIgnored(String uri) {
+    return (getResult(uri) & IGNORED) != 0;
+  }
+
+  private int getResult(String uri) {
+    Integer result = results.get(uri);
+    if (result == null) {
+      result = (matchesNoinline(uri) ? NOINLINE : 0) | (shouldIgnoreUri(uri) ? IGNORED : 0);
+      results.put(uri, result);
+    }
+    return result;
+  }
+
+  private boolean matchesNoinline(String href) {
+    for (Pattern pattern : noinline) {
+      if (pattern.matcher(href).find()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean shouldIgnoreUri(String uri) {
+    if (uri.startsWith("#")
+        || uri.endsWith("/")
+        || uri.startsWith("data:")
+        || uri.startsWith("javascript:")
+        || uri.startsWith("mailto:")) {
+      return true;
+    }
+    // One pass for "//", and for the Polymer variables "[[...]]" and "{{...}}", where the closing
+    // brackets may come anywhere, even before the opening ones.
+    boolean openSquare = false;
+    boolean closeSquare = false;
+    boolean openCurly = false;
+    boolean closeCurly = false;
+    for (int i = 1; i < uri.length(); i++) {
+      char c = uri.charAt(i);
+      if (c != uri.charAt(i - 1)) {
+        continue;
+      }
+      switch (c) {
+        case '/':
+          return true;
+        case '[':
+          openSquare = true;
+          break;
+        case ']':
+          closeSquare = true;
+          break;
+        case '{':
+          openCurly = true;
+          break;
+        case '}':
+          closeCurly = true;
+          break;
+        default:
+          continue;
+      }
+      if ((openSquare && closeSquare) || (openCurly && closeCurly)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Joins the patterns that can be joined into one, keeping the others as they are, which includes
+   * patterns compiled with flags. Inline flags are fine, since they only apply within the group
+   * they're in.
+   */
+  private static ImmutableList<Pattern> combine(List<Pattern> patterns) {
+    List<Pattern> combinable = new ArrayList<>();
+    ImmutableList.Builder<Pattern> result = ImmutableList.builder();
+    for (Pattern pattern : patterns) {
+      if (pattern.flags() != 0 || UNSAFE_TO_COMBINE.matcher(pattern.pattern()).find()) {
+        result.add(pattern);
+      } else {
+        combinable.add(pattern);
+      }
+    }
+    if (combinable.size() == 1) {
+      result.add(combinable.get(0));
+    } else if (combinable.size() > 1) {
+      StringBuilder alternation = new StringBuilder();
+      for (Pattern pattern : combinable) {
+        if (alternation.length() > 0) {
+          alternation.append('|');
+        }
+        alternation.append("(?:").append(pattern.pattern()).append(')');
+      }
+      try {
+        result.add(Pattern.compile(alternation.toString()));
+      } catch (PatternSyntaxException e) {
+        return ImmutableList.copyOf(patterns);
+      }
+    }
+    return result.build();
+  }
+}
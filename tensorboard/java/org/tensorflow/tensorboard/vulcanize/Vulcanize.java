@@ -14,46 +14,49 @@
 
 package org.tensorflow.tensorboard.vulcanize;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Verify.verify;
 import static com.google.common.base.Verify.verifyNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.hash.Hashing;
-import com.google.common.io.BaseEncoding;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.javascript.jscomp.BasicErrorManager;
 import com.google.javascript.jscomp.CheckLevel;
 import com.google.javascript.jscomp.CompilationLevel;
 import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.CompilerInput;
 import com.google.javascript.jscomp.CompilerOptions;
-import com.google.javascript.jscomp.DiagnosticGroup;
-import com.google.javascript.jscomp.DiagnosticGroups;
-import com.google.javascript.jscomp.DiagnosticType;
 import com.google.javascript.jscomp.JSError;
+import com.google.javascript.jscomp.JSModule;
 import com.google.javascript.jscomp.PropertyRenamingPolicy;
-import com.google.javascript.jscomp.Result;
 import com.google.javascript.jscomp.SourceFile;
-import com.google.javascript.jscomp.WarningsGuard;
 import com.google.javascript.jscomp.deps.ModuleLoader;
-import com.google.protobuf.TextFormat;
+import com.google.protobuf.ByteString;
 import io.bazel.rules.closure.Webpath;
 import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
 import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -61,15 +64,19 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Pattern;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Attribute;
@@ -83,137 +90,483 @@ import org.jsoup.nodes.TextNode;
 import org.jsoup.parser.Parser;
 import org.jsoup.parser.Tag;
 import org.jsoup.select.Elements;
+import org.jsoup.select.NodeTraversor;
 
-/** Simple one-off solution for TensorBoard vulcanization. */
+/**
+ * Simple one-off solution for TensorBoard vulcanization.
+ *
+ * <p>This can be run as a command line program, or as a library via {@link #vulcanize}.
+ */
 public final class Vulcanize {
 
   private static final Pattern INLINE_SOURCE_MAP_PATTERN =
       Pattern.compile("//# sourceMappingURL=.*");
 
-  private static final Pattern IGNORE_PATHS_PATTERN =
-      Pattern.compile("/(?:polymer|marked-element)/.*");
-
   private static final ImmutableSet<String> EXTRA_JSDOC_TAGS =
       ImmutableSet.of("attribute", "hero", "group", "required");
 
-  private static final Pattern SCRIPT_DELIMITER_PATTERN =
-      Pattern.compile("//# sourceURL=build:/([^\n]+)");
-
-  private static final String SCRIPT_DELIMITER = "//# sourceURL=build:/%name%";
-
-  private static final Parser parser = Parser.htmlParser();
-  private static final Map<Webpath, Path> webfiles = new HashMap<>();
-  private static final Set<Webpath> alreadyInlined = new HashSet<>();
-  private static final Set<String> legalese = new HashSet<>();
-  private static final List<String> licenses = new ArrayList<>();
-  private static final List<Webpath> stack = new ArrayList<>();
-  private static final Map<String, SourceFile> externs = new LinkedHashMap<>();
-  private static final List<SourceFile> sourcesFromJsLibraries = new ArrayList<>();
-  private static final Map<Webpath, String> sourcesFromScriptTags = new LinkedHashMap<>();
-  private static final Map<Webpath, Node> sourceTags = new LinkedHashMap<>();
-  private static final Multimap<Webpath, String> suppressions = HashMultimap.create();
-  private static CompilationLevel compilationLevel;
-  private static Webpath outputPath;
-  private static Node firstScript;
-  private static Node licenseComment;
-  private static int insideDemoSnippet;
-  private static boolean testOnly;
-  private static boolean wantsCompile;
-  private static List<Pattern> ignoreRegExs = new ArrayList<>();
+  private static final String SCRIPT_DELIMITER_PREFIX = "//# sourceURL=build:/";
+
+  private static final String SCRIPT_DELIMITER = SCRIPT_DELIMITER_PREFIX + "%name%";
 
   // This is the default argument to Vulcanize for when the path_regexs_for_noinline attribute in
   // third_party/tensorboard/defs/vulcanize.bzl is not set.
   private static final String NO_NOINLINE_FILE_PROVIDED = "NO_REGEXS";
 
+  private static final long DEFAULT_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+
   private static final Pattern ABS_URI_PATTERN = Pattern.compile("^(?:/|[A-Za-z][A-Za-z0-9+.-]*:)");
 
+  private final ImmutableMap<Webpath, Path> webfiles;
+  private final WebfileStore store;
+  private final ImmutableMap<String, String> sourcesFromJsLibraries;
+  private final ImmutableMap<String, JsLibrarySnapshot> externLibraries;
+  private final UriFilter uriFilter;
+  private final CompilationLevel compilationLevel;
+  private final boolean wantsCompile;
+  private final boolean testOnly;
+  private final boolean parallelCompile;
+  private final ForkJoinPool pool;
+  private final ScriptCache cache;
+  private final boolean streamOutput;
+  private final boolean minifyStyles;
+  private final Metrics metrics;
+  private final Webpath outputPath;
+  private final ImportPrefetcher imports;
+  private final ImmutableMap<Webpath, Webpath> chunkEntries;
+  private final Map<Webpath, Webpath> lazyImports = new LinkedHashMap<>();
+  private final Set<Webpath> lazyImported = new HashSet<>();
+  private final Map<Webpath, Document> chunks = new LinkedHashMap<>();
+  private final Set<Webpath> alreadyInlined = new HashSet<>();
+  private final Set<String> legalese = new HashSet<>();
+  private final List<String> licenses = new ArrayList<>();
+  private final List<Webpath> stack = new ArrayList<>();
+  private final Map<String, SourceFile> externs = new LinkedHashMap<>();
+  private final Map<Webpath, String> sourcesFromScriptTags = new LinkedHashMap<>();
+  private final Map<Webpath, Node> sourceTags = new LinkedHashMap<>();
+  private final Map<Webpath, Integer> scriptModules = new HashMap<>();
+  private final Multimap<Webpath, String> suppressions = HashMultimap.create();
+  private final List<Map.Entry<DataNode, ForkJoinTask<String>>> minifications = new ArrayList<>();
+  private final List<Node> removed = new ArrayList<>();
+  private Node firstScript;
+  private Node licenseComment;
+  private SplicingWriter splicingWriter;
+  private HtmlStreamWriter streamWriter;
+  private int insideDemoSnippet;
+  private int module;
+
+  @VisibleForTesting
+  Vulcanize(Options options, Webpath outputPath) {
+    this(options, outputPath, false);
+  }
+
+  private Vulcanize(Options options, Webpath outputPath, boolean streaming) {
+    this.webfiles = options.webfiles;
+    this.store = options.store;
+    this.sourcesFromJsLibraries = options.sourcesFromJsLibraries;
+    this.externLibraries = options.externLibraries;
+    this.uriFilter = new UriFilter(options.ignoreRegExs);
+    this.compilationLevel = options.compilationLevel;
+    this.wantsCompile = options.wantsCompile;
+    this.testOnly = options.testOnly;
+    this.parallelCompile = options.parallelCompile;
+    this.pool = options.pool;
+    this.cache = options.cache;
+    this.streamOutput = options.streamOutput;
+    this.minifyStyles = options.minifyStyles;
+    this.metrics = options.metrics;
+    this.outputPath = outputPath;
+    // Streaming only parses ahead what the documents being written import, to bound memory.
+    this.imports = new ImportPrefetcher(store, uriFilter, options.pool, metrics, !streaming);
+    this.chunkEntries = options.chunks;
+    for (Map.Entry<String, String> extern : options.externs.entrySet()) {
+      externs.put(extern.getKey(), SourceFile.fromCode(extern.getKey(), extern.getValue()));
+    }
+  }
+
   public static void main(String[] args) throws FileNotFoundException, IOException {
-    compilationLevel = CompilationLevel.fromString(args[0]);
-    wantsCompile = args[1].equals("true");
-    testOnly = args[2].equals("true");
-    Webpath inputPath = Webpath.get(args[3]);
-    outputPath = Webpath.get(args[4]);
-    Path output = Paths.get(args[5]);
-    Path shasumOutput = Paths.get(args[6]);
-    if (!args[7].equals(NO_NOINLINE_FILE_PROVIDED)) {
-      String ignoreFile = new String(Files.readAllBytes(Paths.get(args[7])), UTF_8);
+    if (PersistentWorker.isRequested(args)) {
+      PersistentWorker.run(Vulcanize::run);
+      return;
+    }
+    int exitCode = run(PersistentWorker.expandFlagfiles(Arrays.asList(args)), ImmutableMap.of());
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  @SuppressWarnings("try")
+  private static int run(List<String> args, Map<String, ByteString> inputDigests)
+      throws FileNotFoundException, IOException {
+    Metrics.resetPeakHeap();
+    Options.Builder options = Options.builder();
+    // Optional flags come before the positional arguments.
+    Path cacheDir = null;
+    long cacheMaxBytes = DEFAULT_CACHE_MAX_BYTES;
+    String metricsFile = null;
+    Map<Webpath, Path> chunkOutputs = new LinkedHashMap<>();
+    while (!args.isEmpty() && args.get(0).startsWith("--")) {
+      String flag = args.get(0);
+      String value = flag.contains("=") ? flag.substring(flag.indexOf('=') + 1) : "";
+      if (flag.equals("--parallel_compile")) {
+        options.setParallelCompile(true);
+      } else if (flag.equals("--stream_output") || flag.startsWith("--stream_output=")) {
+        options.setStreamOutput(!value.equals("false"));
+      } else if (flag.equals("--minify_styles")) {
+        options.setMinifyStyles(true);
+      } else if (flag.equals("--stream_documents")) {
+        options.setStreamDocuments(true);
+      } else if (flag.startsWith("--cache_dir=")) {
+        cacheDir = Paths.get(value);
+      } else if (flag.startsWith("--cache_max_bytes=")) {
+        cacheMaxBytes = Long.parseLong(value);
+      } else if (flag.startsWith("--chunk=")) {
+        // --chunk=ENTRY_WEBPATH,CHUNK_WEBPATH,OUTPUT_FILE
+        List<String> parts = Splitter.on(',').limit(3).splitToList(value);
+        checkArgument(parts.size() == 3, "Expected --chunk=entry,webpath,file: %s", flag);
+        Webpath chunk = Webpath.get(parts.get(1));
+        options.addChunk(Webpath.get(parts.get(0)), chunk);
+        chunkOutputs.put(chunk.normalize(), Paths.get(parts.get(2)));
+      } else if (flag.startsWith(Metrics.FLAG)) {
+        metricsFile = value;
+      } else {
+        throw new IllegalArgumentException("Unknown flag: " + flag);
+      }
+      args = args.subList(1, args.size());
+    }
+    Metrics metrics = new Metrics();
+    options.setMetrics(metrics);
+    ScriptCache cache = null;
+    if (cacheDir != null) {
+      cache = new ScriptCache(cacheDir, cacheMaxBytes);
+      options.setCache(cache);
+    }
+    options
+        .setCompilationLevel(CompilationLevel.fromString(args.get(0)))
+        .setCompile(args.get(1).equals("true"))
+        .setTestOnly(args.get(2).equals("true"));
+    Webpath inputPath = Webpath.get(args.get(3));
+    Webpath outputPath = Webpath.get(args.get(4));
+    Path output = Paths.get(args.get(5));
+    Path shasumOutput = Paths.get(args.get(6));
+    if (!args.get(7).equals(NO_NOINLINE_FILE_PROVIDED)) {
+      String ignoreFile = new String(Files.readAllBytes(Paths.get(args.get(7))), UTF_8);
       Arrays.asList(ignoreFile.split("\n")).forEach(
-          (str) -> ignoreRegExs.add(Pattern.compile(str)));
-    }
-    for (int i = 8; i < args.length; i++) {
-      if (args[i].endsWith(".js")) {
-        String code = new String(Files.readAllBytes(Paths.get(args[i])), UTF_8);
-        SourceFile sourceFile = SourceFile.fromCode(args[i], code);
-        if (code.contains("@externs")) {
-          externs.put(args[i], sourceFile);
-        } else {
-          sourcesFromJsLibraries.add(sourceFile);
-        }
-        continue;
+          (str) -> options.addIgnoreRegEx(Pattern.compile(str)));
+    }
+    List<Path> manifests = new ArrayList<>();
+    for (int i = 8; i < args.size(); i++) {
+      String arg = args.get(i);
+      if (arg.endsWith(".js")) {
+        JsLibrarySnapshot library = JsLibrarySnapshot.get(Paths.get(arg), inputDigests.get(arg));
+        options.addJsLibrary(arg, library);
+      } else if (WebfilesManifests.isManifest(arg)) {
+        manifests.add(Paths.get(arg));
       }
-      if (!args[i].endsWith(".pbtxt")) {
-        continue;
+    }
+    try (Metrics.Timer timer = metrics.time("load_manifests")) {
+      for (Webfiles manifest : WebfilesManifests.loadAll(manifests)) {
+        options.addWebfiles(manifest);
       }
-      Webfiles manifest = loadWebfilesPbtxt(Paths.get(args[i]));
-      for (WebfilesSource src : manifest.getSrcList()) {
-        webfiles.put(Webpath.get(src.getWebpath()), Paths.get(src.getPath()));
+    }
+    Options built = options.build();
+    Result result = null;
+    List<String> streamedHashes = null;
+    if (built.streamDocuments) {
+      streamedHashes = vulcanizeTo(inputPath, outputPath, built, output);
+    } else {
+      result = vulcanize(inputPath, outputPath, built);
+    }
+    if (cache != null) {
+      cache.trim();
+      metrics.set("cache_hits", cache.getHits());
+      metrics.set("cache_misses", cache.getMisses());
+    }
+    WebfileStore store = built.store;
+    metrics.set("webfiles_read", store.getFilesRead());
+    metrics.set("webfiles_mapped", store.getFilesMapped());
+    metrics.set("webfile_duplicate_reads_avoided", store.getDuplicateReadsAvoided());
+    metrics.set("bytes_in", store.getBytesRead());
+    boolean success = streamedHashes != null || result.isSuccess();
+    if (streamedHashes != null) {
+      writeShasum(shasumOutput, streamedHashes);
+    } else if (success) {
+      result.writeHtml(output);
+      for (Map.Entry<Webpath, Path> chunk : chunkOutputs.entrySet()) {
+        result.writeChunk(chunk.getKey(), chunk.getValue());
       }
+      result.writeShasum(shasumOutput);
     }
-    stack.add(inputPath);
-    Document document = parse(Files.readAllBytes(webfiles.get(inputPath)));
-    transform(document);
+    if (success) {
+      metrics.set("bytes_out", Files.size(output));
+    }
+    if (metricsFile != null) {
+      metrics.write(metricsFile);
+    }
+    return success ? 0 : 1;
+  }
+
+  /**
+   * Vulcanizes the HTML document at {@code inputPath} and everything it imports.
+   *
+   * <p>Each call has its own state, so several documents may be vulcanized concurrently with the
+   * same {@link Options}.
+   *
+   * @param inputPath web path of the document to vulcanize
+   * @param outputPath web path the vulcanized document will be served from, which is what
+   *     attributes referring to other webfiles are made relative to
+   */
+  public static Result vulcanize(Webpath inputPath, Webpath outputPath, Options options)
+      throws FileNotFoundException, IOException {
+    return new Vulcanize(options, outputPath).process(inputPath);
+  }
+
+  /**
+   * Inlines the document at {@code inputPath} like {@link #vulcanize} does without compiling, but
+   * writes it to {@code output} as the documents are walked, rather than building one tree out of
+   * all of them. Each import is written where it's found, and emptied once it's done, and webfiles
+   * aren't kept once they're read, so the content held at once is bounded by how deeply imports
+   * nest rather than by the size of the output. What still grows with the input is a little
+   * bookkeeping per webfile, such as its path and the hash of each script. The licenses, which
+   * go into the first comment, are spliced in at the end.
+   *
+   * <p>The output is the same as writing {@link Result#getDocument} with {@link HtmlStreamWriter}.
+   *
+   * @return base64 SHA-256 of each script in document order
+   * @throws IllegalArgumentException unless {@link Options.Builder#setStreamDocuments} applies
+   */
+  public static ImmutableList<String> vulcanizeTo(
+      Webpath inputPath, Webpath outputPath, Options options, Path output) throws IOException {
+    checkArgument(
+        options.streamDocuments, "Only uncompiled builds without chunks or styles stream");
+    return new Vulcanize(options, outputPath, true).stream(inputPath, output);
+  }
+
+  @SuppressWarnings("try")
+  private ImmutableList<String> stream(Webpath inputPath, Path output) throws IOException {
+    try (SplicingWriter out = new SplicingWriter(output)) {
+      splicingWriter = out;
+      streamWriter = HtmlStreamWriter.to(out, store);
+      stack.add(inputPath);
+      try {
+        imports.prefetch(inputPath);
+        Document document = imports.take(inputPath);
+        if (document == null) {
+          document = parseWebfile(inputPath);
+        }
+        try (Metrics.Timer timer = metrics.time("stream")) {
+          transform(document);
+        }
+      } finally {
+        imports.close();
+      }
+      metrics.count("licenses", licenses.size());
+      StringWriter license = new StringWriter();
+      if (licenseComment != null) {
+        // Written just like process() leaves it in the tree.
+        licenseComment.attr("comment", getLicenseText());
+        HtmlStreamWriter.to(license, store).head(licenseComment, 0);
+      }
+      out.finish(license.toString());
+      return streamWriter.getScriptHashes();
+    }
+  }
+
+  @SuppressWarnings("try")
+  private Result process(Webpath inputPath) throws IOException {
+    Document document = transformDocument(inputPath);
     if (wantsCompile) {
-      compile();
-      combineScriptElements(document);
+      boolean success;
+      try (Metrics.Timer timer = metrics.time("compile")) {
+        success = compile();
+      }
+      if (!success) {
+        return new Result(null, ImmutableMap.of(), store, streamOutput, metrics);
+      }
+      try (Metrics.Timer timer = metrics.time("combine")) {
+        combineScriptElements(document);
+        for (Document chunk : chunks.values()) {
+          combineScriptElements(chunk);
+        }
+      }
     } else if (firstScript != null) {
-      firstScript.before(
-          new Element(Tag.valueOf("script"), firstScript.baseUri())
-              .appendChild(new DataNode("var CLOSURE_NO_DEPS = true;", firstScript.baseUri())));
-      for (SourceFile source : sourcesFromJsLibraries) {
-        String code = source.getCode();
-        firstScript.before(
-            new Element(Tag.valueOf("script"), firstScript.baseUri())
-                .appendChild(new DataNode(code, firstScript.baseUri())));
+      for (Element script : getLibraryScripts(firstScript.baseUri())) {
+        firstScript.before(script);
       }
     }
     if (licenseComment != null) {
-      licenseComment.attr("comment", String.format("\n%s\n", Joiner.on("\n\n").join(licenses)));
+      licenseComment.attr("comment", getLicenseText());
     }
+    return new Result(document, ImmutableMap.copyOf(chunks), store, streamOutput, metrics);
+  }
 
-    Files.write(
-        output,
-        Html5Printer.stringify(document).getBytes(UTF_8),
-        StandardOpenOption.WRITE,
-        StandardOpenOption.CREATE,
-        StandardOpenOption.TRUNCATE_EXISTING);
+  /** Returns the scripts that go before the first one when not compiling. */
+  private List<Element> getLibraryScripts(String baseUri) {
+    List<Element> scripts = new ArrayList<>();
+    scripts.add(
+        new Element(Tag.valueOf("script"), baseUri)
+            .appendChild(new DataNode("var CLOSURE_NO_DEPS = true;", baseUri)));
+    for (String code : sourcesFromJsLibraries.values()) {
+      scripts.add(
+          new Element(Tag.valueOf("script"), baseUri).appendChild(new DataNode(code, baseUri)));
+    }
+    return scripts;
+  }
 
-    writeShasum(document, shasumOutput);
+  private String getLicenseText() {
+    return String.format("\n%s\n", Joiner.on("\n\n").join(licenses));
   }
 
-  private static void transform(Node root) throws IOException {
+  /**
+   * Loads the document at {@code inputPath} and inlines everything it imports into it, except for
+   * the chunks, which are inlined into documents of their own.
+   */
+  @VisibleForTesting
+  Document transformDocument(Webpath inputPath) throws IOException {
+    return transformDocument(inputPath, null);
+  }
+
+  /**
+   * Same as {@link #transformDocument(Webpath)}, but starts from {@code parsed} rather than the
+   * document at {@code inputPath} if it isn't null, e.g. so that a test can count what jsoup does.
+   */
+  @VisibleForTesting
+  @SuppressWarnings("try")
+  Document transformDocument(Webpath inputPath, Document parsed) throws IOException {
+    stack.add(inputPath);
+    Document document = parsed;
+    try {
+      imports.prefetch(inputPath);
+      Set<Webpath> hoisted = chunkEntries.isEmpty() ? ImmutableSet.of() : planChunks(inputPath);
+      if (document == null) {
+        document = imports.take(inputPath);
+      }
+      if (document == null) {
+        document = parseWebfile(inputPath);
+      }
+      for (Webpath path : hoisted) {
+        document.body().appendElement("link").attr("rel", "import").attr("href", path.toString());
+      }
+      try (Metrics.Timer timer = metrics.time("transform")) {
+        transform(document);
+        for (Map.Entry<Webpath, Webpath> chunk : chunkEntries.entrySet()) {
+          chunks.put(chunk.getValue(), transformChunk(chunk.getKey()));
+        }
+        detachAll(removed);
+        metrics.count("nodes_removed", removed.size());
+        removed.clear();
+      }
+    } finally {
+      imports.close();
+    }
+    finishMinifications();
+    if (minifyStyles) {
+      try (Metrics.Timer timer = metrics.time("styles")) {
+        StyleMinifier styles = new StyleMinifier(metrics);
+        styles.process(document);
+        for (Document chunk : chunks.values()) {
+          styles.process(chunk);
+        }
+        styles.report();
+      }
+    }
+    metrics.count("licenses", licenses.size());
+    return document;
+  }
+
+  /**
+   * Works out what each chunk imports, given the imports of every document that can be reached,
+   * and returns the documents that several of them import, which the main document has to import
+   * instead.
+   *
+   * @throws IllegalArgumentException if the entry of a chunk is imported by another chunk, which
+   *     means it can't be loaded on its own
+   */
+  private Set<Webpath> planChunks(Webpath inputPath) {
+    lazyImports.putAll(chunkEntries);
+    Set<Webpath> core = imports.reach(inputPath, lazyImports.keySet());
+    Map<Webpath, Set<Webpath>> reached = new LinkedHashMap<>();
+    for (Webpath entry : lazyImports.keySet()) {
+      Set<Webpath> paths = imports.reach(entry, lazyImports.keySet());
+      for (Webpath path : paths) {
+        checkArgument(
+            path.equals(entry) || !lazyImports.containsKey(path),
+            "%s is imported by chunk entry %s, so it can't be a chunk of its own; "
+                + "drop it from the chunks of %s",
+            path,
+            entry,
+            outputPath);
+      }
+      reached.put(entry, paths);
+    }
+    Set<Webpath> seen = new HashSet<>(core);
+    Set<Webpath> hoisted = new LinkedHashSet<>();
+    for (Set<Webpath> paths : reached.values()) {
+      for (Webpath path : paths) {
+        if (!seen.add(path) && !core.contains(path)) {
+          hoisted.add(path);
+        }
+      }
+    }
+    metrics.count("chunks", lazyImports.size());
+    metrics.count("documents_hoisted", hoisted.size());
+    return hoisted;
+  }
+
+  /** Inlines the imports of a chunk's entry that weren't inlined before, into a new document. */
+  private Document transformChunk(Webpath entry) throws IOException {
+    module++;
+    lazyImported.clear();
+    alreadyInlined.add(entry);
+    stack.add(entry);
+    Document chunk = imports.take(entry);
+    if (chunk == null) {
+      chunk = parseWebfile(entry);
+    }
+    transform(chunk);
+    return chunk;
+  }
+
+  /**
+   * Visits every node under {@code root} once, in document order, without recursion. Nodes are
+   * compared by identity, and removed ones leave a placeholder until {@link #detachAll}, so each
+   * step takes constant time whatever the size of the document. The nodes entered are counted as
+   * {@code nodes_visited}.
+   */
+  private void transform(Node root) throws IOException {
     Node node = checkNotNull(root);
     Node newNode;
+    long visited = 0;
     while (true) {
       newNode = enterNode(node);
-      if (node.equals(root)) {
+      visited++;
+      if (node == root) {
         root = newNode;
       }
       node = newNode;
+      if (streamWriter != null) {
+        writeHead(node);
+      }
       if (node.childNodeSize() > 0) {
         node = node.childNode(0);
       } else {
         while (true) {
           newNode = leaveNode(node);
-          if (node.equals(root)) {
+          if (node == root) {
             root = newNode;
           }
           node = newNode;
-          if (node.equals(root)) {
+          if (streamWriter != null) {
+            writeTail(node);
+          }
+          if (node == root) {
+            metrics.count("nodes_visited", visited);
             return;
           }
           Node next = node.nextSibling();
           if (next == null) {
             if (node.parentNode() == null) {
+              metrics.count("nodes_visited", visited);
               return;
             }
             node = verifyNotNull(node.parentNode(), "unexpected root: %s", node);
@@ -226,23 +579,49 @@ public final class Vulcanize {
     }
   }
 
-  private static boolean isExternalCssNode(Node node) {
-    if (node.nodeName().equals("link")
-        && node.attr("rel").equals("stylesheet")
-        && !node.attr("href").isEmpty()) {
+  private void writeHead(Node node) throws IOException {
+    try {
+      if (node == licenseComment) {
+        splicingWriter.mark();
+        return;
+      }
+      if (node == firstScript) {
+        for (Element script : getLibraryScripts(node.baseUri())) {
+          NodeTraversor.traverse(streamWriter, script);
+        }
+      }
+      streamWriter.head(node, 0);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private void writeTail(Node node) throws IOException {
+    try {
+      streamWriter.tail(node, 0);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (node instanceof Document) {
+      // It's been written, and the walk only needs it to find its next sibling.
+      ((Document) node).empty();
+    }
+  }
+
+  private static boolean isExternalCssNode(Node node, String rel, String href) {
+    if (rel.equals("stylesheet") && !href.isEmpty()) {
       return true;
     }
-    if (node.nodeName().equals("link")
-        && node.attr("rel").equals("import")
+    if (rel.equals("import")
         && (node.attr("type").equals("css")
             || node.attr("type").equals("text/css"))
-        && !node.attr("href").isEmpty()) {
+        && !href.isEmpty()) {
       return true;
     }
     return false;
   }
 
-  private static Node enterNode(Node node) throws IOException {
+  private Node enterNode(Node node) throws IOException {
     if (node.nodeName().equals("demo-snippet")) {
       insideDemoSnippet++;
     }
@@ -252,23 +631,16 @@ public final class Vulcanize {
     if (node instanceof Element) {
       String href = node.attr("href");
       // Ignore any files that match any of the ignore regular expressions.
-      boolean ignoreFile = false;
-      for (Pattern pattern : ignoreRegExs) {
-        if (pattern.matcher(href).find()) {
-          ignoreFile = true;
-          break;
-        }
-      }
-      if (!ignoreFile) {
-        if (isExternalCssNode(node)
-            && !shouldIgnoreUri(href)) {
+      if (!uriFilter.isNoinline(href)) {
+        String rel = node.nodeName().equals("link") ? node.attr("rel") : "";
+        if (isExternalCssNode(node, rel, href)
+            && !uriFilter.isIgnored(href)) {
           node = visitStylesheet(node);
-        } else if (node.nodeName().equals("link")
-            && node.attr("rel").equals("import")) {
+        } else if (rel.equals("import")) {
           // Inline HTML.
           node = visitHtmlImport(node);
         } else if (node.nodeName().equals("script")
-            && !shouldIgnoreUri(node.attr("src"))
+            && !uriFilter.isIgnored(node.attr("src"))
             && !node.hasAttr("jscomp-ignore")) {
           if (wantsCompile) {
             node = visitScript(node);
@@ -297,7 +669,7 @@ public final class Vulcanize {
     return node;
   }
 
-  private static Node leaveNode(Node node) {
+  private Node leaveNode(Node node) {
     if (node instanceof Document) {
       stack.remove(stack.size() - 1);
     } else if (node.nodeName().equals("demo-snippet")) {
@@ -306,11 +678,31 @@ public final class Vulcanize {
     return node;
   }
 
-  private static Node visitHtmlImport(Node node) throws IOException {
+  private Node visitHtmlImport(Node node) throws IOException {
     Webpath href = me().lookup(Webpath.get(node.attr("href")));
+    Webpath chunk = module == 0 ? lazyImports.get(href) : null;
+    if (chunk != null) {
+      if (!lazyImported.add(href)) {
+        return removeNode(node);
+      }
+      String group = href.getFileName().toString();
+      if (group.lastIndexOf('.') > 0) {
+        group = group.substring(0, group.lastIndexOf('.'));
+      }
+      return replaceNode(
+          node,
+          new Element(Tag.valueOf("link"), node.baseUri())
+              .attr("rel", "lazy-import")
+              .attr("group", group)
+              .attr("href", outputPath.getParent().relativize(chunk).toString()));
+    }
     if (alreadyInlined.add(href)) {
       stack.add(href);
-      Document subdocument = parse(Files.readAllBytes(getWebfile(href)));
+      Document subdocument = imports.take(href);
+      if (subdocument == null) {
+        subdocument = parseWebfile(href);
+      }
+      metrics.count("documents_inlined", 1);
       for (Attribute attr : node.attributes()) {
         subdocument.attr(attr.getKey(), attr.getValue());
       }
@@ -320,7 +712,7 @@ public final class Vulcanize {
     }
   }
 
-  private static Node visitScript(Node node) throws IOException {
+  private Node visitScript(Node node) throws IOException {
     Webpath path;
     String script;
     if (node.attr("src").isEmpty()) {
@@ -328,7 +720,7 @@ public final class Vulcanize {
       script = getInlineScriptFromNode(node);
     } else {
       path = me().lookup(Webpath.get(node.attr("src")));
-      script = new String(Files.readAllBytes(getWebfile(path)), UTF_8);
+      script = readWebfileString(path);
       script = INLINE_SOURCE_MAP_PATTERN.matcher(script).replaceAll("");
     }
     boolean wantsMinify = getAttrTransitive(node, "jscomp-minify").isPresent();
@@ -338,16 +730,25 @@ public final class Vulcanize {
       SourceFile sourceFile = SourceFile.fromCode(filePath, script);
       externs.put(filePath, sourceFile);
       // Remove script tag of extern since it is not needed at the run time.
-      return replaceNode(node, new TextNode("", node.baseUri()));
+      return removeNode(node);
     } else if (node.attr("src").endsWith(".min.js")
         || getAttrTransitive(node, "jscomp-nocompile").isPresent()
         || wantsMinify) {
-      if (wantsMinify) {
-        script = minify(path, script);
+      DataNode data;
+      if (wantsMinify && parallelCompile) {
+        // Minified in the background and filled in by finishMinifications().
+        data = new DataNode("", node.baseUri());
+        String code = script;
+        minifications.add(Maps.immutableEntry(data, pool.submit(() -> minify(path, code))));
+      } else {
+        if (wantsMinify) {
+          script = minify(path, script);
+        }
+        data = new DataNode(script, node.baseUri());
       }
       Node newScript =
           new Element(Tag.valueOf("script"), node.baseUri(), node.attributes())
-              .appendChild(new DataNode(script, node.baseUri()))
+              .appendChild(data)
               .removeAttr("src")
               .removeAttr("jscomp-minify")
               .removeAttr("jscomp-nocompile");
@@ -355,6 +756,7 @@ public final class Vulcanize {
     } else {
       sourcesFromScriptTags.put(path, script);
       sourceTags.put(path, node);
+      scriptModules.put(path, module);
       Optional<String> suppress = getAttrTransitive(node, "jscomp-suppress");
       if (suppress.isPresent()) {
         if (suppress.get().isEmpty()) {
@@ -367,25 +769,25 @@ public final class Vulcanize {
     }
   }
 
-  private static Node visitStylesheet(Node node) throws IOException {
+  private Node visitStylesheet(Node node) throws IOException {
     Webpath href = me().lookup(Webpath.get(node.attr("href")));
     return replaceNode(
         node,
         new Element(Tag.valueOf("style"), node.baseUri(), node.attributes())
             .appendChild(
-                new DataNode(
-                    new String(Files.readAllBytes(getWebfile(href)), UTF_8), node.baseUri()))
+                new DataNode(readWebfileString(href), node.baseUri()))
             .removeAttr("rel")
             .removeAttr("href"));
   }
 
-  private static Node inlineScript(Node node) throws IOException {
+  private Node inlineScript(Node node) throws IOException {
     Node result;
     if (node.attr("src").isEmpty()) {
       result = node;
     } else {
       Webpath href = me().lookup(Webpath.get(node.attr("src")));
-      String code = new String(Files.readAllBytes(getWebfile(href)), UTF_8);
+      String code = readWebfileString(href);
+      metrics.count("scripts_inlined", 1);
       code = code.replace("</script>", "</JAVA_SCRIIIIPT/>");
       code = INLINE_SOURCE_MAP_PATTERN.matcher(code).replaceAll("");
       result = replaceNode(
@@ -394,7 +796,7 @@ public final class Vulcanize {
               .appendChild(new DataNode(code, node.baseUri()))
               .removeAttr("src"));
     }
-    if (firstScript == null) {
+    if (firstScript == null && module == 0) {
       firstScript = result;
     }
     return result;
@@ -415,18 +817,74 @@ public final class Vulcanize {
     return newNode;
   }
 
-  private static Node removeNode(Node node) {
-    return replaceNode(node, new TextNode("", node.baseUri()));
+  // The walk goes on from the placeholder. Detaching each node where it is would take time in
+  // proportion to the number of siblings after it, since jsoup reindexes them.
+  private Node removeNode(Node node) {
+    Node placeholder = replaceNode(node, new TextNode("", node.baseUri()));
+    if (streamWriter == null) {
+      // Streaming writes nothing for it, and empties its document once that's been written.
+      removed.add(placeholder);
+    }
+    return placeholder;
   }
 
-  private static Path getWebfile(Webpath path) {
+  /**
+   * Detaches {@code nodes} in time linear in the number of children of their parents. The children
+   * of each parent are taken off from the end, down to the first node to detach, which jsoup does
+   * without reindexing any siblings, and the ones that stay are appended again.
+   */
+  @VisibleForTesting
+  static void detachAll(List<? extends Node> nodes) {
+    Map<Element, BitSet> doomed = new IdentityHashMap<>();
+    for (Node node : nodes) {
+      // Only elements have children in jsoup.
+      Element parent = (Element) node.parentNode();
+      if (parent != null) {
+        doomed.computeIfAbsent(parent, p -> new BitSet(p.childNodeSize())).set(node.siblingIndex());
+      }
+    }
+    List<Node> kept = new ArrayList<>();
+    for (Map.Entry<Element, BitSet> entry : doomed.entrySet()) {
+      Element parent = entry.getKey();
+      BitSet indexes = entry.getValue();
+      for (int i = parent.childNodeSize() - 1; i >= indexes.nextSetBit(0); i--) {
+        Node child = parent.childNode(i);
+        child.remove();
+        if (!indexes.get(i)) {
+          kept.add(child);
+        }
+      }
+      for (int i = kept.size() - 1; i >= 0; i--) {
+        parent.appendChild(kept.get(i));
+      }
+      kept.clear();
+    }
+  }
+
+  private Path getWebfile(Webpath path) {
     return verifyNotNull(webfiles.get(path), "Bad ref: %s -> %s", me(), path);
   }
 
-  private static void compile() {
+  @SuppressWarnings("try")
+  private Document parseWebfile(Webpath path) throws IOException {
+    getWebfile(path);
+    try (Metrics.Timer timer = metrics.time("parse")) {
+      return parse(store.newInputStream(path));
+    }
+  }
+
+  private String readWebfileString(Webpath path) throws IOException {
+    getWebfile(path);
+    return store.getString(path);
+  }
+
+  @VisibleForTesting
+  @SuppressWarnings("try")
+  boolean compile() throws IOException {
     if (sourcesFromScriptTags.isEmpty()) {
-      return;
+      return true;
     }
+    metrics.count("scripts_compiled", sourcesFromScriptTags.size());
 
     CompilerOptions options = new CompilerOptions();
     compilationLevel.setOptionsForCompilationLevel(options);
@@ -484,123 +942,249 @@ public final class Vulcanize {
       options.setExportTestFunctions(true);
     }
 
-    // Don't print warnings from <script jscomp-suppress="group1 group2" ...> tags.
-    ImmutableMultimap<DiagnosticType, String> diagnosticGroups = initDiagnosticGroups();
-    options.addWarningsGuard(
-        new WarningsGuard() {
-          @Override
-          public CheckLevel level(JSError error) {
-            if (error.getSourceName() == null) {
-              return null;
-            }
-            if (error.getDefaultLevel() == CheckLevel.WARNING
-                && isErrorFromTranspiledTypescriptCode(error)) {
-              // Let's put our faith in the TypeScript compiler. At least until we have tsickle as
-              // part of our build process.
-              return CheckLevel.OFF;
-            }
-            if (error.getDefaultLevel() == CheckLevel.WARNING
-                && (error.getSourceName().startsWith("/iron-")
-                    || error.getSourceName().startsWith("/neon-")
-                    || error.getSourceName().startsWith("/paper-"))) {
-              // Suppress warnings in the Polymer standard libraries.
-              return CheckLevel.OFF;
-            }
-            if (error.getSourceName().startsWith("javascript/externs")
-                || error.getSourceName().contains("com_google_javascript_closure_compiler_externs")) {
-              // TODO(@jart): Figure out why these "mismatch of the removeEventListener property on
-              //             type" warnings are showing up.
-              //             https://github.com/google/closure-compiler/pull/1959
-              return CheckLevel.OFF;
-            }
-            if (error.getSourceName().endsWith("externs/webcomponents-externs.js")) {
-              // TODO(stephanwlee): Figure out why above externs cause variable
-              // declare issue. Seems to do with usage of `let` in Polymer 2.x
-              // branch.
-              // Ref: #2425.
-              return CheckLevel.WARNING;
-            }
-            if (IGNORE_PATHS_PATTERN.matcher(error.getSourceName()).matches()) {
-              return CheckLevel.OFF;
-            }
-            if ((error.getSourceName().startsWith("/tf-") || error.getSourceName().startsWith("/vz-"))
-                && error.getType().key.equals("JSC_VAR_MULTIPLY_DECLARED_ERROR")) {
-              return CheckLevel.OFF; // TODO(@jart): Remove when tf/vz components/plugins are ES6 modules.
-            }
-            if (error.getType().key.equals("JSC_POLYMER_UNQUALIFIED_BEHAVIOR")
-                || error.getType().key.equals("JSC_POLYMER_UNANNOTATED_BEHAVIOR")) {
-              return CheckLevel.OFF; // TODO(@jart): What is wrong with this thing?
-            }
-            Collection<String> codes = suppressions.get(Webpath.get(error.getSourceName()));
-            if (codes.contains("*") || codes.contains(error.getType().key)) {
-              return CheckLevel.OFF;
-            }
-            for (String group : diagnosticGroups.get(error.getType())) {
-              if (codes.contains(group)) {
-                return CheckLevel.OFF;
-              }
-            }
-            return null;
-          }
-        });
+    // Parse the inputs on a thread per core, which only changes how long it takes.
+    if (parallelCompile) {
+      options.setNumParallelThreads(Runtime.getRuntime().availableProcessors());
+    }
 
-    // Get reverse topological script tags and their web paths, which js_library stuff first.
-    List<SourceFile> sauce = Lists.newArrayList(sourcesFromJsLibraries);
+    // Don't print warnings from <script jscomp-suppress="group1 group2" ...> tags.
+    ScriptWarningsGuard warningsGuard = new ScriptWarningsGuard(webfiles.keySet(), suppressions);
+    options.addWarningsGuard(warningsGuard);
+
+    // Get reverse topological script tags and their web paths, which js_library stuff first. Each
+    // chunk is a module of its own, which depends on the module of the main document.
+    List<List<SourceFile>> modules = new ArrayList<>();
+    List<Map<Webpath, Node>> moduleTags = new ArrayList<>();
+    for (int i = 0; i <= chunkEntries.size(); i++) {
+      modules.add(new ArrayList<>());
+      moduleTags.add(new LinkedHashMap<>());
+    }
+    for (Map.Entry<String, String> source : sourcesFromJsLibraries.entrySet()) {
+      modules.get(0).add(SourceFile.fromCode(source.getKey(), source.getValue()));
+    }
     for (Map.Entry<Webpath, String> source : sourcesFromScriptTags.entrySet()) {
-      sauce.add(SourceFile.fromCode(source.getKey().toString(), source.getValue()));
+      int i = scriptModules.get(source.getKey());
+      modules.get(i).add(SourceFile.fromCode(source.getKey().toString(), source.getValue()));
+      moduleTags.get(i).put(source.getKey(), sourceTags.get(source.getKey()));
     }
+    verify(
+        !moduleTags.get(0).isEmpty(),
+        "Chunks need a <script> in the main document for their module to depend on");
 
     List<SourceFile> externsList = new ArrayList<>(externs.values());
 
-    // Compile everything into a single script.
-    Compiler compiler = new Compiler();
-    compiler.disableThreads();
-    Result result = compiler.compile(externsList, sauce, options);
-    if (!result.success) {
-      System.exit(1);
+    HashCode cacheKey = null;
+    List<String> jsBlobs = null;
+    if (cache != null) {
+      cacheKey = getCompileCacheKey(options, externsList, modules);
+      jsBlobs = getCachedBlobs(cacheKey, modules.size());
     }
-    String jsBlob = compiler.toSource();
-    // Split apart the JS blob and put it back in the original <script> locations.
+    if (jsBlobs == null) {
+      // The warnings are kept with the output, so a cached build shows the same ones.
+      ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+      Compiler compiler = new Compiler(new PrintStream(warnings, true, UTF_8.name()));
+      if (!parallelCompile) {
+        compiler.disableThreads();
+      }
+      jsBlobs = new ArrayList<>();
+      // Externs a persistent worker parsed before are copied rather than parsed again. They go in
+      // the first module, which the compiler hoists them out of, after the other externs.
+      String fingerprint = ScriptCache.describe(options);
+      List<SourceFile> unparsedExterns = new ArrayList<>();
+      List<CompilerInput> parsedExterns = new ArrayList<>();
+      for (SourceFile extern : externsList) {
+        JsLibrarySnapshot library = externLibraries.get(extern.getName());
+        CompilerInput input = null;
+        if (library != null && library.getCode().equals(extern.getCode())) {
+          input = library.newExternsInput(options, fingerprint);
+        }
+        if (input == null) {
+          unparsedExterns.add(extern);
+        } else {
+          parsedExterns.add(input);
+        }
+      }
+      com.google.javascript.jscomp.Result result;
+      if (modules.size() == 1 && parsedExterns.isEmpty()) {
+        // Compile everything into a single script.
+        result = compiler.compile(externsList, modules.get(0), options);
+        warningsGuard.report(metrics);
+        System.err.print(warnings.toString(UTF_8.name()));
+        if (!result.success) {
+          return false;
+        }
+        jsBlobs.add(compiler.toSource());
+      } else {
+        List<JSModule> jsModules = new ArrayList<>();
+        for (int i = 0; i < modules.size(); i++) {
+          JSModule jsModule = new JSModule(i == 0 ? "core" : "chunk" + i);
+          if (i == 0) {
+            for (CompilerInput input : parsedExterns) {
+              jsModule.add(input);
+            }
+          }
+          for (SourceFile source : modules.get(i)) {
+            jsModule.add(source);
+          }
+          if (i > 0) {
+            jsModule.addDependency(jsModules.get(0));
+          }
+          jsModules.add(jsModule);
+        }
+        result = compiler.compileModules(unparsedExterns, jsModules, options);
+        warningsGuard.report(metrics);
+        System.err.print(warnings.toString(UTF_8.name()));
+        if (!result.success) {
+          return false;
+        }
+        for (JSModule jsModule : jsModules) {
+          jsBlobs.add(compiler.toSource(jsModule));
+        }
+      }
+      if (cache != null) {
+        cache.put(getWarningsCacheKey(cacheKey), warnings.toString(UTF_8.name()));
+        for (int i = 0; i < jsBlobs.size(); i++) {
+          cache.put(getModuleCacheKey(cacheKey, i), jsBlobs.get(i));
+        }
+      }
+    }
+    for (String jsBlob : jsBlobs) {
+      metrics.count("compiled_bytes", jsBlob.length());
+    }
+    // Split apart the JS blobs and put them back in the original <script> locations.
+    try (Metrics.Timer timer = metrics.time("swap_script")) {
+      for (int i = 0; i < jsBlobs.size(); i++) {
+        if (!moduleTags.get(i).isEmpty()) {
+          swapScripts(jsBlobs.get(i), moduleTags.get(i));
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Splits apart a JS blob and puts it back in the original {@code <script>} locations. */
+  private static void swapScripts(String jsBlob, Map<Webpath, Node> sourceTags) {
     Deque<Map.Entry<Webpath, Node>> tags = new ArrayDeque<>();
     tags.addAll(sourceTags.entrySet());
-    Matcher matcher = SCRIPT_DELIMITER_PATTERN.matcher(jsBlob);
-    verify(matcher.find(), "Nothing found in compiled JS blob!");
-    Webpath path = Webpath.get(matcher.group(1));
+    // Each piece is a view of the blob from one delimiter up to the next one that belongs to a
+    // <script> tag, found in a single pass rather than copied out with substring().
+    int delimiter = findScriptDelimiter(jsBlob, 0);
+    verify(delimiter >= 0, "Nothing found in compiled JS blob!");
+    Webpath path = getScriptDelimiterPath(jsBlob, delimiter);
     int start = 0;
-    while (matcher.find()) {
+    while ((delimiter = findScriptDelimiter(jsBlob, delimiter + 1)) >= 0) {
       if (sourceTags.containsKey(path)) {
-        swapScript(tags, path, jsBlob.substring(start, matcher.start()));
-        start = matcher.start();
+        swapScript(tags, path, jsBlob, start, delimiter);
+        start = delimiter;
       }
-      path = Webpath.get(matcher.group(1));
+      path = getScriptDelimiterPath(jsBlob, delimiter);
     }
-    swapScript(tags, path, jsBlob.substring(start));
+    swapScript(tags, path, jsBlob, start, jsBlob.length());
     verify(tags.isEmpty(), "<script> wasn't compiled: %s", tags);
   }
 
-  private static boolean isErrorFromTranspiledTypescriptCode(JSError error) {
-    // We perform this check by looking for a concomitant .d.ts webfile which is generated by the
-    // TypeScript compiler. Ideally we would use SourceExcerptProvider to determine the original
-    // source name, but WarningsGuard objects do not appear to have access to that.
-    String path = error.getSourceName();
-    if (!path.endsWith(".js")) {
-      return false;
+  // Only successful compiles are cached, and suppressions can turn errors off, so they're part of
+  // the key even though they don't affect the output.
+  private HashCode getCompileCacheKey(
+      CompilerOptions options, List<SourceFile> externsList, List<List<SourceFile>> modules)
+      throws IOException {
+    Hasher key = ScriptCache.newKey("compile", options);
+    List<List<SourceFile>> inputs = new ArrayList<>();
+    inputs.add(externsList);
+    inputs.addAll(modules);
+    for (List<SourceFile> sources : inputs) {
+      key.putInt(sources.size());
+      for (SourceFile source : sources) {
+        ScriptCache.putString(key, source.getName());
+        ScriptCache.putString(key, source.getCode());
+      }
+    }
+    Set<String> sortedSuppressions = new TreeSet<>();
+    for (Map.Entry<Webpath, String> suppression : suppressions.entries()) {
+      sortedSuppressions.add(suppression.getKey() + " " + suppression.getValue());
+    }
+    for (String suppression : sortedSuppressions) {
+      ScriptCache.putString(key, suppression);
     }
-    return webfiles.containsKey(Webpath.get(path.substring(0, path.length() - 3) + ".d.ts"));
+    return key.hash();
+  }
+
+  // Each module is cached on its own, so the blob of the main document is where it always was.
+  private static HashCode getModuleCacheKey(HashCode key, int module) {
+    if (module == 0) {
+      return key;
+    }
+    return ScriptCache.newKey("compile_chunk").putBytes(key.asBytes()).putInt(module).hash();
+  }
+
+  private static HashCode getWarningsCacheKey(HashCode key) {
+    return ScriptCache.newKey("compile_warnings").putBytes(key.asBytes()).hash();
+  }
+
+  /**
+   * Returns the compiled modules, or null unless every one of them is cached, in which case the
+   * warnings of the compile that cached them are printed again.
+   */
+  private List<String> getCachedBlobs(HashCode key, int modules) {
+    String warnings = cache.get(getWarningsCacheKey(key));
+    if (warnings == null) {
+      return null;
+    }
+    List<String> jsBlobs = new ArrayList<>();
+    for (int i = 0; i < modules; i++) {
+      String jsBlob = cache.get(getModuleCacheKey(key, i));
+      if (jsBlob == null) {
+        return null;
+      }
+      jsBlobs.add(jsBlob);
+    }
+    System.err.print(warnings);
+    return jsBlobs;
+  }
+
+  /**
+   * Returns where the next delimiter with a non-empty path starts in {@code jsBlob}, at or after
+   * {@code from}, or -1.
+   */
+  private static int findScriptDelimiter(String jsBlob, int from) {
+    int delimiter = from;
+    while ((delimiter = jsBlob.indexOf(SCRIPT_DELIMITER_PREFIX, delimiter)) >= 0) {
+      int path = delimiter + SCRIPT_DELIMITER_PREFIX.length();
+      if (path < jsBlob.length() && jsBlob.charAt(path) != '\n') {
+        return delimiter;
+      }
+      delimiter = path;
+    }
+    return -1;
+  }
+
+  private static Webpath getScriptDelimiterPath(String jsBlob, int delimiter) {
+    int start = delimiter + SCRIPT_DELIMITER_PREFIX.length();
+    int end = jsBlob.indexOf('\n', start);
+    return Webpath.get(jsBlob.substring(start, end < 0 ? jsBlob.length() : end));
   }
 
   private static void swapScript(
-      Deque<Map.Entry<Webpath, Node>> tags, Webpath path, String script) {
+      Deque<Map.Entry<Webpath, Node>> tags, Webpath path, String jsBlob, int start, int end) {
     verify(!tags.isEmpty(), "jscomp compiled %s after last <script>?!", path);
     Webpath want = tags.getFirst().getKey();
     verify(path.equals(want), "<script> tag for %s should come before %s", path, want);
     Node tag = tags.removeFirst().getValue();
     tag.replaceWith(
         new Element(Tag.valueOf("script"), tag.baseUri())
-            .appendChild(new DataNode(script, tag.baseUri())));
+            .appendChild(new SlicedDataNode(tag.baseUri()).append(jsBlob, start, end)));
   }
 
-  private static String minify(Webpath path, String script) {
+  @VisibleForTesting
+  @SuppressWarnings("try")
+  String minify(Webpath path, String script) {
+    metrics.count("scripts_minified", 1);
+    try (Metrics.Timer timer = metrics.time("minify")) {
+      return minifyUncounted(path, script);
+    }
+  }
+
+  private String minifyUncounted(Webpath path, String script) {
     CompilerOptions options = new CompilerOptions();
     options.skipAllCompilerPasses();
     options.setLanguageIn(CompilerOptions.LanguageMode.ECMASCRIPT_2016);
@@ -611,26 +1195,47 @@ public final class Vulcanize {
       options.setPrettyPrint(true);
       options.setGeneratePseudoNames(true);
     }
+    HashCode cacheKey = null;
+    if (cache != null) {
+      // The path isn't part of the key, since it doesn't affect the output. Minifying never prints
+      // warnings, so there are none to keep.
+      cacheKey = ScriptCache.putString(ScriptCache.newKey("minify", options), script).hash();
+      String cached = cache.get(cacheKey);
+      if (cached != null) {
+        return cached;
+      }
+    }
     Compiler compiler = new Compiler(new JsPrintlessErrorManager());
     compiler.disableThreads();
     compiler.compile(
         ImmutableList.of(),
         ImmutableList.of(SourceFile.fromCode(path.toString(), script)),
         options);
-    return compiler.toSource();
+    String result = compiler.toSource();
+    if (cache != null) {
+      cache.put(cacheKey, result);
+    }
+    return result;
+  }
+
+  private void finishMinifications() {
+    for (Map.Entry<DataNode, ForkJoinTask<String>> minification : minifications) {
+      minification.getKey().setWholeData(minification.getValue().join());
+    }
+    minifications.clear();
   }
 
-  private static void handleLicense(String text) {
+  private void handleLicense(String text) {
     if (legalese.add(CharMatcher.whitespace().removeFrom(text))) {
       licenses.add(CharMatcher.anyOf("\r\n").trimFrom(text));
     }
   }
 
-  private static Webpath me() {
+  private Webpath me() {
     return Iterables.getLast(stack);
   }
 
-  private static Webpath makeSyntheticName(String extension) {
+  private Webpath makeSyntheticName(String extension) {
     String me = me().toString();
     Webpath result = Webpath.get(me + extension);
     int n = 2;
@@ -640,7 +1245,7 @@ public final class Vulcanize {
     return result;
   }
 
-  private static void rootifyAttribute(Node node, String attribute) {
+  private void rootifyAttribute(Node node, String attribute) {
     String value = node.attr(attribute);
     if (value.isEmpty()) {
       return;
@@ -660,7 +1265,7 @@ public final class Vulcanize {
    * Checks whether a path is a absolute path.
    * Webpath.isAbsolute does not take data uri and other forms of absolute path into account.
    */
-  private static Boolean isAbsolutePath(Webpath path) {
+  static Boolean isAbsolutePath(Webpath path) {
     return path.isAbsolute() || ABS_URI_PATTERN.matcher(path.toString()).find();
   }
 
@@ -674,52 +1279,19 @@ public final class Vulcanize {
     return sb.toString();
   }
 
-  private static Document parse(byte[] bytes) {
-    return parse(new ByteArrayInputStream(bytes));
-  }
-
-  private static Document parse(InputStream input) {
+  static Document parse(InputStream input) {
     Document document;
     try {
-      document = Jsoup.parse(input, null, "", parser);
+      // Parsers aren't thread safe, and imports are parsed concurrently.
+      document = Jsoup.parse(input, null, "", Parser.htmlParser());
     } catch (IOException e) {
-      throw new AssertionError("I/O error when parsing byte array D:", e);
+      throw new AssertionError("I/O error when parsing in-memory webfile D:", e);
     }
     document.outputSettings().indentAmount(0);
     document.outputSettings().prettyPrint(false);
     return document;
   }
 
-  private static Webfiles loadWebfilesPbtxt(Path path) throws IOException {
-    verify(path.toString().endsWith(".pbtxt"), "Not a pbtxt file: %s", path);
-    Webfiles.Builder build = Webfiles.newBuilder();
-    TextFormat.getParser().merge(new String(Files.readAllBytes(path), UTF_8), build);
-    return build.build();
-  }
-
-  private static boolean shouldIgnoreUri(String uri) {
-    return uri.startsWith("#")
-        || uri.endsWith("/")
-        || uri.contains("//")
-        || uri.startsWith("data:")
-        || uri.startsWith("javascript:")
-        || uri.startsWith("mailto:")
-        // The following are intended to filter out URLs with Polymer variables.
-        || (uri.contains("[[") && uri.contains("]]"))
-        || (uri.contains("{{") && uri.contains("}}"));
-  }
-
-  private static ImmutableMultimap<DiagnosticType, String> initDiagnosticGroups() {
-    DiagnosticGroups groups = new DiagnosticGroups();
-    Multimap<DiagnosticType, String> builder = HashMultimap.create();
-    for (Map.Entry<String, DiagnosticGroup> group : groups.getRegisteredGroups().entrySet()) {
-      for (DiagnosticType type : group.getValue().getTypes()) {
-        builder.put(type, group.getKey());
-      }
-    }
-    return ImmutableMultimap.copyOf(builder);
-  }
-
   // Combine content of script tags into a group. To guarantee the correctness, it only groups
   // content of `src`-less scripts between `src`-full scripts. The last combination gets inserted at the
   // end of the document.
@@ -739,76 +1311,368 @@ public final class Vulcanize {
   //   <script>C,D</script>
   //   <script src="srcful3"></script>
   //   <script>E</script>
-  private static void combineScriptElements(Document document) {
+  //
+  // The combined content shares the slices of the compiled JS blob rather than copying them.
+  @VisibleForTesting
+  static void combineScriptElements(Document document) {
     Elements scripts = document.getElementsByTag("script");
-    StringBuilder sourcesBuilder = new StringBuilder();
+    List<Element> combined = new ArrayList<>();
+    SlicedDataNode sources = new SlicedDataNode("");
+    boolean empty = true;
 
     for (Element script : scripts) {
       if (!script.attr("src").isEmpty()) {
-        if (sourcesBuilder.length() == 0) {
+        if (empty) {
           continue;
         }
-        Element scriptTag = new Element(Tag.valueOf("script"), "")
-            .appendChild(new DataNode(sourcesBuilder.toString(), ""));
+        Element scriptTag = new Element(Tag.valueOf("script"), "").appendChild(sources);
         script.before(scriptTag);
-        sourcesBuilder = new StringBuilder();
+        sources = new SlicedDataNode("");
+        empty = true;
       } else {
-        sourcesBuilder.append(script.html()).append("\n");
-        script.remove();
+        for (Node child : script.childNodes()) {
+          if (child instanceof DataNode) {
+            sources.append((DataNode) child);
+          } else {
+            sources.append(child.outerHtml());
+          }
+        }
+        sources.append("\n");
+        empty = false;
+        combined.add(script);
       }
     }
+    detachAll(combined);
 
     // jsoup parser creates body elements for each HTML files. Since document.body() returns the
     // first instance and we want to insert the script element at the end of the document, we
     // manually grab the last one.
     Element lastBody = Iterables.getLast(document.getElementsByTag("body"));
 
-    Element scriptTag = new Element(Tag.valueOf("script"), "")
-        .appendChild(new DataNode(sourcesBuilder.toString(), ""));
+    Element scriptTag = new Element(Tag.valueOf("script"), "").appendChild(sources);
     lastBody.appendChild(scriptTag);
   }
 
-  private static ArrayList<String> computeScriptShasum(Document document) throws FileNotFoundException, IOException {
-    ArrayList<String> hashes = new ArrayList<>();
+  private static void writeShasum(Path output, List<String> hashes) throws IOException {
+    Files.write(
+        output,
+        Joiner.on("\n").join(hashes).getBytes(UTF_8),
+        StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  private static ImmutableList<String> computeScriptShasum(
+      Document document, WebfileStore store) throws FileNotFoundException, IOException {
+    ScriptHashes hashes = new ScriptHashes(store);
     for (Element script : document.getElementsByTag("script")) {
-      String src = script.attr("src");
-      String sourceContent;
-      if (src.isEmpty()) {
-        sourceContent = script.html();
-      } else {
-        // script element that remains are the ones with src that is absolute or annotated with
-        // `jscomp-ignore`. They must resolve from the root because those srcs are rootified.
-        Webpath webpathSrc = Webpath.get(src);
-        Webpath webpath = Webpath.get("/").resolve(Webpath.get(src)).normalize();
-        if (isAbsolutePath(webpathSrc)) {
-          System.err.println(
-              "WARNING: "
-                  + webpathSrc
-                  + " refers to a remote resource. Please add it to CSP manually. Detail: "
-                  + script.outerHtml());
-          continue;
-        } else if (!webfiles.containsKey(webpath)) {
-          throw new FileNotFoundException(
-              "Expected webfiles for " + webpath + " to exist. Related: " + script.outerHtml());
+      hashes.add(script);
+    }
+    return hashes.build();
+  }
+
+  /**
+   * Settings and read-only inputs for vulcanization, which may be shared by concurrent runs.
+   */
+  public static final class Options {
+    private final ImmutableMap<Webpath, Path> webfiles;
+    private final WebfileStore store;
+    private final ImmutableMap<String, String> externs;
+    private final ImmutableMap<String, String> sourcesFromJsLibraries;
+    private final ImmutableMap<String, JsLibrarySnapshot> externLibraries;
+    private final ImmutableList<Pattern> ignoreRegExs;
+    private final ImmutableMap<Webpath, Webpath> chunks;
+    private final CompilationLevel compilationLevel;
+    private final boolean wantsCompile;
+    private final boolean testOnly;
+    private final boolean parallelCompile;
+    private final ForkJoinPool pool;
+    private final ScriptCache cache;
+    private final boolean streamOutput;
+    private final boolean minifyStyles;
+    private final boolean streamDocuments;
+    private final Metrics metrics;
+
+    private Options(Builder builder) {
+      webfiles = ImmutableMap.copyOf(builder.webfiles);
+      externs = ImmutableMap.copyOf(builder.externs);
+      sourcesFromJsLibraries = ImmutableMap.copyOf(builder.sourcesFromJsLibraries);
+      externLibraries = ImmutableMap.copyOf(builder.externLibraries);
+      ignoreRegExs = ImmutableList.copyOf(builder.ignoreRegExs);
+      chunks = ImmutableMap.copyOf(builder.chunks);
+      compilationLevel = checkNotNull(builder.compilationLevel, "compilationLevel");
+      wantsCompile = builder.wantsCompile;
+      testOnly = builder.testOnly;
+      parallelCompile = builder.parallelCompile;
+      pool = builder.pool;
+      cache = builder.cache;
+      streamOutput = builder.streamOutput;
+      minifyStyles = builder.minifyStyles;
+      checkArgument(
+          !builder.streamDocuments || (!wantsCompile && chunks.isEmpty() && !minifyStyles),
+          "Documents can't be streamed when compiling, with chunks or when minifying styles");
+      streamDocuments = builder.streamDocuments;
+      // Streamed documents use each webfile once, so there's no point in holding on to them.
+      store = new WebfileStore(webfiles, !streamDocuments);
+      metrics = builder.metrics;
+    }
+
+    public static Builder builder() {
+      return new Builder();
+    }
+
+    /** Builder for {@link Options}. */
+    public static final class Builder {
+      private final Map<Webpath, Path> webfiles = new HashMap<>();
+      private final Map<String, String> externs = new LinkedHashMap<>();
+      private final Map<String, String> sourcesFromJsLibraries = new LinkedHashMap<>();
+      private final Map<String, JsLibrarySnapshot> externLibraries = new LinkedHashMap<>();
+      private final List<Pattern> ignoreRegExs = new ArrayList<>();
+      private final Map<Webpath, Webpath> chunks = new LinkedHashMap<>();
+      private CompilationLevel compilationLevel = CompilationLevel.ADVANCED_OPTIMIZATIONS;
+      private boolean wantsCompile;
+      private boolean testOnly;
+      private boolean parallelCompile;
+      private ForkJoinPool pool = ForkJoinPool.commonPool();
+      private ScriptCache cache;
+      private boolean streamOutput = true;
+      private boolean minifyStyles;
+      private boolean streamDocuments;
+      private Metrics metrics = new Metrics();
+
+      private Builder() {}
+
+      public Builder setCompilationLevel(CompilationLevel compilationLevel) {
+        this.compilationLevel = compilationLevel;
+        return this;
+      }
+
+      /** Whether scripts are compiled with Closure Compiler, rather than just inlined. */
+      public Builder setCompile(boolean wantsCompile) {
+        this.wantsCompile = wantsCompile;
+        return this;
+      }
+
+      /** Whether compiled output should be pretty printed for debugging. */
+      public Builder setTestOnly(boolean testOnly) {
+        this.testOnly = testOnly;
+        return this;
+      }
+
+      /**
+       * Lets Closure Compiler use its own threads and parse on a thread per core, and runs each
+       * {@code jscomp-minify} script through the compiler on the pool rather than during the DOM
+       * walk.
+       */
+      public Builder setParallelCompile(boolean parallelCompile) {
+        this.parallelCompile = parallelCompile;
+        return this;
+      }
+
+      /**
+       * Sets the pool on which HTML imports are read and parsed ahead of being inlined, and on
+       * which scripts are minified when {@link #setParallelCompile} is enabled.
+       */
+      public Builder setPool(ForkJoinPool pool) {
+        this.pool = checkNotNull(pool);
+        return this;
+      }
+
+      /** Sets a cache for minified and compiled scripts, which is null by default. */
+      public Builder setCache(ScriptCache cache) {
+        this.cache = cache;
+        return this;
+      }
+
+      /**
+       * Serializes the output with {@link HtmlStreamWriter} rather than as one big string, which
+       * also computes the script hashes during the same pass. On by default; the bytes written are
+       * the same either way, so turning it off is only useful to compare with jsoup's printer.
+       */
+      public Builder setStreamOutput(boolean streamOutput) {
+        this.streamOutput = streamOutput;
+        return this;
+      }
+
+      /**
+       * Minifies the CSS of {@code <style>} elements, including inlined stylesheets, and removes
+       * styles that repeat the previous stylesheet of their scope. See {@link StyleMinifier}.
+       */
+      public Builder setMinifyStyles(boolean minifyStyles) {
+        this.minifyStyles = minifyStyles;
+        return this;
+      }
+
+      /**
+       * Has the command line tool write the output while the documents are walked, with {@link
+       * #vulcanizeTo}. That only works without compiling, chunks or style minification, which need
+       * the whole document first, so {@link #build} fails if any of them is set too.
+       */
+      public Builder setStreamDocuments(boolean streamDocuments) {
+        this.streamDocuments = streamDocuments;
+        return this;
+      }
+
+      /**
+       * Sets where phase timings and counters are recorded. Each Options gets its own by default,
+       * which nobody reads.
+       */
+      public Builder setMetrics(Metrics metrics) {
+        this.metrics = checkNotNull(metrics);
+        return this;
+      }
+
+      /** Adds a pattern for hrefs that should be left as is, rather than inlined. */
+      public Builder addIgnoreRegEx(Pattern pattern) {
+        ignoreRegExs.add(pattern);
+        return this;
+      }
+
+      /**
+       * Splits the HTML import {@code entry} and whatever only it imports off into a separate
+       * document, served at {@code chunk}, which the frontend loads on demand.
+       *
+       * <p>Wherever the main document imported the entry, there's a {@code <link
+       * rel="lazy-import" group="...">} pointing at the chunk instead, the group being the file
+       * name of the entry without its extension. When compiling, each chunk is a module that
+       * depends on the main document's scripts. Documents imported by several chunks go into the
+       * main document. An entry imported by another chunk fails the build.
+       */
+      public Builder addChunk(Webpath entry, Webpath chunk) {
+        checkArgument(
+            entry.isAbsolute() && chunk.isAbsolute(), "Not absolute: %s %s", entry, chunk);
+        chunks.put(entry.normalize(), chunk.normalize());
+        return this;
+      }
+
+      /**
+       * Adds a JavaScript file that's always taken into consideration, which is treated as externs
+       * if it contains an {@code @externs} annotation.
+       */
+      public Builder addJsLibrary(String path, String code) {
+        return addJsLibrary(path, code, code.contains("@externs"));
+      }
+
+      /** Adds a JavaScript file like {@link #addJsLibrary(String, String)} that outlives runs. */
+      Builder addJsLibrary(String path, JsLibrarySnapshot library) {
+        addJsLibrary(path, library.getCode(), library.isExterns());
+        if (library.isExterns()) {
+          externLibraries.put(path, library);
+        }
+        return this;
+      }
+
+      private Builder addJsLibrary(String path, String code, boolean isExterns) {
+        externLibraries.remove(path);
+        if (isExterns) {
+          externs.put(path, code);
+        } else {
+          sourcesFromJsLibraries.put(path, code);
         }
-        sourceContent = new String(Files.readAllBytes(webfiles.get(webpath)), UTF_8);
+        return this;
+      }
+
+      /** Adds the sources from a webfiles manifest, where later manifests take precedence. */
+      public Builder addWebfiles(Webfiles manifest) {
+        for (WebfilesSource src : manifest.getSrcList()) {
+          webfiles.put(Webpath.get(src.getWebpath()), Paths.get(src.getPath()));
+        }
+        return this;
+      }
+
+      public Options build() {
+        return new Options(this);
       }
-      String hash = BaseEncoding.base64().encode(
-          Hashing.sha256().hashString(sourceContent, UTF_8).asBytes());
-      hashes.add(hash);
     }
-    return hashes;
   }
 
-  // Writes sha256 of script tags in base64 in the document.
-  private static void writeShasum(Document document, Path output) throws FileNotFoundException, IOException {
-    String hashes = Joiner.on("\n").join(computeScriptShasum(document));
-    Files.write(
-        output,
-        hashes.getBytes(UTF_8),
-        StandardOpenOption.WRITE,
-        StandardOpenOption.CREATE,
-        StandardOpenOption.TRUNCATE_EXISTING);
+  /** Output of {@link #vulcanize}. */
+  public static final class Result {
+    private final Document document;
+    private final ImmutableMap<Webpath, Document> chunks;
+    private final WebfileStore store;
+    private final boolean streamOutput;
+    private final Metrics metrics;
+    private final Map<Document, List<String>> scriptHashes = new IdentityHashMap<>();
+
+    private Result(
+        Document document,
+        ImmutableMap<Webpath, Document> chunks,
+        WebfileStore store,
+        boolean streamOutput,
+        Metrics metrics) {
+      this.document = document;
+      this.chunks = chunks;
+      this.store = store;
+      this.streamOutput = streamOutput;
+      this.metrics = metrics;
+    }
+
+    /** Returns false if Closure Compiler reported errors, in which case there is no output. */
+    public boolean isSuccess() {
+      return document != null;
+    }
+
+    public Document getDocument() {
+      verify(isSuccess(), "Vulcanization failed");
+      return document;
+    }
+
+    /** Returns the documents split off with {@link Options.Builder#addChunk}, by webpath. */
+    public ImmutableMap<Webpath, Document> getChunks() {
+      verify(isSuccess(), "Vulcanization failed");
+      return chunks;
+    }
+
+    public void writeHtml(Path output) throws IOException {
+      write(getDocument(), output);
+    }
+
+    public void writeChunk(Webpath chunk, Path output) throws IOException {
+      Document document = getChunks().get(chunk.normalize());
+      checkArgument(document != null, "Not a chunk: %s", chunk);
+      write(document, output);
+    }
+
+    @SuppressWarnings("try")
+    private void write(Document document, Path output) throws IOException {
+      try (Metrics.Timer timer = metrics.time("print")) {
+        if (streamOutput) {
+          // Serializes straight to the file, collecting the script hashes along the way.
+          scriptHashes.put(document, HtmlStreamWriter.write(document, output, store));
+          return;
+        }
+        Files.write(
+            output,
+            Html5Printer.stringify(document).getBytes(UTF_8),
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+      }
+    }
+
+    // Writes sha256 of script tags in base64 in the document, followed by those of the chunks,
+    // since the content security policy of the document has to allow the chunks it loads.
+    public void writeShasum(Path output) throws FileNotFoundException, IOException {
+      List<String> hashes = new ArrayList<>();
+      hashes.addAll(getScriptHashes(getDocument()));
+      for (Document chunk : getChunks().values()) {
+        hashes.addAll(getScriptHashes(chunk));
+      }
+      Vulcanize.writeShasum(output, hashes);
+    }
+
+    @SuppressWarnings("try")
+    private List<String> getScriptHashes(Document document)
+        throws FileNotFoundException, IOException {
+      List<String> hashes = scriptHashes.get(document);
+      if (hashes == null) {
+        try (Metrics.Timer timer = metrics.time("shasum")) {
+          hashes = computeScriptShasum(document, store);
+        }
+      }
+      return hashes;
+    }
   }
 
   private static final class JsPrintlessErrorManager extends BasicErrorManager {
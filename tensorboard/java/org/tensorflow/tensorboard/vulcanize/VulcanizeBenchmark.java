@@ -0,0 +1,325 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Verify.verify;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ObjectArrays;
+import com.google.javascript.jscomp.CompilationLevel;
+import io.bazel.rules.closure.Webpath;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the phases of Vulcanize over a synthetic import graph.
+ *
+ * <p>Every phase consumes the state the previous ones left behind, so each measured call gets a
+ * fresh {@link Vulcanize} that was brought to the right point during setup. That's why these are
+ * single shot: setup runs before every call, outside of the measurement. Run with e.g.
+ *
+ * <pre>
+ * bazel run //tensorboard/java/org/tensorflow/tensorboard/vulcanize:VulcanizeBenchmark -- \
+ *     -p documents=50,200 -p srcScripts=true,false
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xss20m", "-XX:+UseParallelGC"})
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class VulcanizeBenchmark {
+
+  private static final Webpath OUTPUT = Webpath.get("/synthetic/out.html");
+
+  @Param({"50"})
+  public int documents;
+
+  @Param({"4"})
+  public int depth;
+
+  @Param({"3"})
+  public int fanOut;
+
+  @Param({"2048"})
+  public int scriptBytes;
+
+  @Param({"false"})
+  public boolean srcScripts;
+
+  @Param({"true"})
+  public boolean stylesheets;
+
+  @Param({"true"})
+  public boolean licenses;
+
+  /** Whether ADVANCED_OPTIMIZATIONS has to keep the scripts, rather than compiling them away. */
+  @Param({"false"})
+  public boolean exports;
+
+  private SyntheticWebfiles webfiles;
+  private Vulcanize.Options inlineOptions;
+  private Vulcanize.Options compileOptions;
+  private byte[] compiledHtml;
+  private String bigScript;
+
+  @Setup(Level.Trial)
+  public void generate() throws IOException {
+    webfiles =
+        SyntheticWebfiles.builder()
+            .setDocuments(documents)
+            .setDepth(depth)
+            .setFanOut(fanOut)
+            .setScriptBytes(scriptBytes)
+            .setSrcScripts(srcScripts)
+            .setStylesheets(stylesheets)
+            .setLicenses(licenses)
+            .setExports(exports)
+            .build();
+    inlineOptions = Vulcanize.Options.builder().addWebfiles(webfiles.getManifest()).build();
+    compileOptions =
+        Vulcanize.Options.builder()
+            .setCompile(true)
+            .setCompilationLevel(CompilationLevel.ADVANCED_OPTIMIZATIONS)
+            .addWebfiles(webfiles.getManifest())
+            .build();
+    // What combineScriptElements gets to work on: the compiled scripts, back in their places.
+    Vulcanize compiler = new Vulcanize(compileOptions, OUTPUT);
+    Document compiled = compiler.transformDocument(SyntheticWebfiles.INDEX);
+    verify(compiler.compile(), "Synthetic scripts failed to compile");
+    compiledHtml = compiled.outerHtml().getBytes(UTF_8);
+    bigScript = SyntheticWebfiles.generateScript(0, scriptBytes * documents);
+    verifyStreamDocuments();
+  }
+
+  /**
+   * Checks that streaming these documents writes the same bytes and hashes as printing the tree
+   * does, like {@code VulcanizeStreamTest} does for smaller ones.
+   */
+  private void verifyStreamDocuments() throws IOException {
+    Path directory = webfiles.getDirectory();
+    Vulcanize.Options treeOptions =
+        Vulcanize.Options.builder().addWebfiles(webfiles.getManifest()).build();
+    Vulcanize.Result tree = Vulcanize.vulcanize(SyntheticWebfiles.INDEX, OUTPUT, treeOptions);
+    tree.writeHtml(directory.resolve("tree.html"));
+    tree.writeShasum(directory.resolve("tree.sha256"));
+    Vulcanize.Options streamOptions =
+        Vulcanize.Options.builder()
+            .setStreamDocuments(true)
+            .addWebfiles(webfiles.getManifest())
+            .build();
+    Path streamed = directory.resolve("streamed.html");
+    String hashes =
+        String.join(
+            "\n", Vulcanize.vulcanizeTo(SyntheticWebfiles.INDEX, OUTPUT, streamOptions, streamed));
+    byte[] html = Files.readAllBytes(directory.resolve("tree.html"));
+    verify(Arrays.equals(html, Files.readAllBytes(streamed)), "Streamed output differs");
+    verify(
+        hashes.equals(new String(Files.readAllBytes(directory.resolve("tree.sha256")), UTF_8)),
+        "Streamed script hashes differ");
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() throws IOException {
+    webfiles.close();
+  }
+
+  /** Inlining everything without compiling, as done for dev servers. */
+  @Benchmark
+  public Document transform() throws IOException {
+    return new Vulcanize(inlineOptions, OUTPUT).transformDocument(SyntheticWebfiles.INDEX);
+  }
+
+  /** Inlining everything and collecting the scripts for Closure Compiler. */
+  @Benchmark
+  public Document transformForCompile() throws IOException {
+    return new Vulcanize(compileOptions, OUTPUT).transformDocument(SyntheticWebfiles.INDEX);
+  }
+
+  /**
+   * Inlining one flat document with {@code nodes} nodes, a third of which are comments that are
+   * removed. The time per node should stay about the same from 1k to 1M nodes, e.g. with
+   * {@code -p nodes=1000,10000,100000,1000000 VulcanizeBenchmark.transformNodes}.
+   */
+  @Benchmark
+  public Document transformNodes(NodesState state) throws IOException {
+    return state.vulcanize.transformDocument(NodesState.INDEX);
+  }
+
+  /** Compiling the collected scripts and putting them back into the document. */
+  @Benchmark
+  public boolean compile(CompileState state) throws IOException {
+    return state.vulcanize.compile();
+  }
+
+  @Benchmark
+  public String minify(MinifyState state) {
+    return state.vulcanize.minify(Webpath.get("/synthetic/big.js"), bigScript);
+  }
+
+  @Benchmark
+  public Document combineScriptElements(CombineState state) {
+    Vulcanize.combineScriptElements(state.document);
+    return state.document;
+  }
+
+  /** The whole command line tool without compilation, including reading and writing files. */
+  @Benchmark
+  public void mainWithoutCompile(MainState state) throws IOException {
+    Vulcanize.main(state.args(webfiles, false));
+  }
+
+  /** Like {@link #mainWithoutCompile}, writing the documents while they're walked. */
+  @Benchmark
+  public void mainStreamingDocuments(MainState state) throws IOException {
+    Vulcanize.main(state.args(webfiles, false, "--stream_documents"));
+  }
+
+  /** The whole command line tool with compilation, including reading and writing files. */
+  @Benchmark
+  public void mainWithCompile(MainState state) throws IOException {
+    Vulcanize.main(state.args(webfiles, true));
+  }
+
+  /** A Vulcanize run that has inlined everything, ready to compile. */
+  @State(Scope.Thread)
+  public static class CompileState {
+    Vulcanize vulcanize;
+
+    @Setup(Level.Invocation)
+    public void setUp(VulcanizeBenchmark benchmark) throws IOException {
+      vulcanize = new Vulcanize(benchmark.compileOptions, OUTPUT);
+      vulcanize.transformDocument(SyntheticWebfiles.INDEX);
+    }
+  }
+
+  /** A document that's nothing but {@code <div>} elements, their text and comments. */
+  @State(Scope.Thread)
+  public static class NodesState {
+    static final Webpath INDEX = Webpath.get("/nodes/index.html");
+
+    @Param({"1000", "1000000"})
+    public int nodes;
+
+    private Path directory;
+    private Path index;
+    private Vulcanize.Options options;
+    Vulcanize vulcanize;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+      StringBuilder html = new StringBuilder("<!doctype html><html><head></head><body>");
+      for (int i = 0; i < nodes / 3; i++) {
+        html.append("<div>").append(i).append("</div><!-- ").append(i).append(" -->");
+      }
+      html.append("</body></html>");
+      directory = Files.createTempDirectory("nodes");
+      index = directory.resolve("index.html");
+      Files.write(index, html.toString().getBytes(UTF_8));
+      options =
+          Vulcanize.Options.builder()
+              .addWebfiles(
+                  Webfiles.newBuilder()
+                      .addSrc(
+                          WebfilesSource.newBuilder()
+                              .setPath(index.toString())
+                              .setWebpath(INDEX.toString()))
+                      .build())
+              .build();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+      vulcanize = new Vulcanize(options, OUTPUT);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+      Files.delete(index);
+      Files.delete(directory);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class MinifyState {
+    Vulcanize vulcanize;
+
+    @Setup(Level.Invocation)
+    public void setUp(VulcanizeBenchmark benchmark) {
+      vulcanize = new Vulcanize(benchmark.inlineOptions, OUTPUT);
+    }
+  }
+
+  /** A compiled document whose scripts haven't been combined yet. */
+  @State(Scope.Thread)
+  public static class CombineState {
+    Document document;
+
+    @Setup(Level.Invocation)
+    public void setUp(VulcanizeBenchmark benchmark) {
+      document = Vulcanize.parse(new ByteArrayInputStream(benchmark.compiledHtml));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class MainState {
+    private Path output;
+    private Path shasum;
+
+    @Setup(Level.Trial)
+    public void setUp(VulcanizeBenchmark benchmark) {
+      output = benchmark.webfiles.getDirectory().resolve("out.html");
+      shasum = benchmark.webfiles.getDirectory().resolve("out.sha256");
+    }
+
+    String[] args(SyntheticWebfiles webfiles, boolean compile, String... flags) {
+      return ObjectArrays.concat(
+          flags,
+          new String[] {
+            "ADVANCED",
+            Boolean.toString(compile),
+            "false",
+            SyntheticWebfiles.INDEX.toString(),
+            OUTPUT.toString(),
+            output.toString(),
+            shasum.toString(),
+            "NO_REGEXS",
+            webfiles.getManifestPath().toString(),
+          },
+          String.class);
+    }
+  }
+}
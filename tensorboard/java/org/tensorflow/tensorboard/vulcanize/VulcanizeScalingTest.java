@@ -0,0 +1,157 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import io.bazel.rules.closure.Webpath;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Checks that inlining takes work in proportion to the size of the document, from 1k to 100k nodes.
+ *
+ * <p>Rather than timing anything, this counts the step that used to make it quadratic: the sibling
+ * indexes jsoup rewrites when nodes are detached.
+ */
+@RunWith(JUnit4.class)
+public final class VulcanizeScalingTest {
+
+  private static final Webpath INDEX = Webpath.get("/index.html");
+  private static final Webpath OUTPUT = Webpath.get("/out.html");
+
+  private Path index;
+  private long reindexes;
+
+  @Before
+  public void createIndex() throws IOException {
+    index = Files.createTempFile("VulcanizeScalingTest", ".html");
+  }
+
+  @After
+  public void deleteIndex() throws IOException {
+    Files.deleteIfExists(index);
+  }
+
+  @Test
+  public void detachAll_reindexesLinearly() {
+    long small = countReindexes(1_000);
+    long large = countReindexes(100_000);
+    assertEquals(500, small);
+    assertEquals(100 * small, large);
+  }
+
+  @Test
+  public void transform_reindexesLinearly() throws IOException {
+    Metrics small = new Metrics();
+    long smallReindexes = transform(1_000, small);
+    Metrics large = new Metrics();
+    long largeReindexes = transform(100_000, large);
+    assertEquals(500, small.get("nodes_removed"));
+    assertEquals(50_000, large.get("nodes_removed"));
+    // Every paragraph but the first, which comes before any comment, is appended again once.
+    // Removing the comments one at a time would reindex about 1.25 billion of them here.
+    assertEquals(499, smallReindexes);
+    assertEquals(49_999, largeReindexes);
+  }
+
+  /** Detaches every other one of {@code nodes} siblings and returns how many were reindexed. */
+  private long countReindexes(int nodes) {
+    Element parent = new Element("div");
+    List<Node> doomed = new ArrayList<>();
+    for (int i = 0; i < nodes; i++) {
+      Node child = new CountingNode();
+      parent.appendChild(child);
+      if (i % 2 == 0) {
+        doomed.add(child);
+      }
+    }
+    reindexes = 0;
+    Vulcanize.detachAll(doomed);
+    assertEquals(nodes / 2, parent.childNodeSize());
+    return reindexes;
+  }
+
+  /**
+   * Inlines a flat document of {@code nodes} nodes, half of them comments, which are removed, and
+   * returns how many times the paragraphs that stay were reindexed.
+   */
+  private long transform(int nodes, Metrics metrics) throws IOException {
+    String html = "<!doctype html><html><head></head><body></body></html>";
+    Files.write(index, html.getBytes(UTF_8));
+    Document document = Vulcanize.parse(new ByteArrayInputStream(html.getBytes(UTF_8)));
+    for (int i = 0; i < nodes / 2; i++) {
+      document.body().appendChild(new CountingParagraph()).appendChild(new Comment(" " + i + " "));
+    }
+    Vulcanize.Options options =
+        Vulcanize.Options.builder()
+            .addWebfiles(
+                Webfiles.newBuilder()
+                    .addSrc(
+                        WebfilesSource.newBuilder()
+                            .setPath(index.toString())
+                            .setWebpath(INDEX.toString()))
+                    .build())
+            .setMetrics(metrics)
+            .build();
+    reindexes = 0;
+    new Vulcanize(options, OUTPUT).transformDocument(INDEX, document);
+    assertEquals(nodes / 2, document.body().childNodeSize());
+    return reindexes;
+  }
+
+  /** Counts every time jsoup sets its sibling index. */
+  private final class CountingNode extends TextNode {
+    CountingNode() {
+      super("");
+    }
+
+    @Override
+    protected void setSiblingIndex(int siblingIndex) {
+      reindexes++;
+      super.setSiblingIndex(siblingIndex);
+    }
+  }
+
+  /** Counts every time jsoup sets the sibling index of a paragraph. */
+  private final class CountingParagraph extends Element {
+    CountingParagraph() {
+      super("p");
+    }
+
+    @Override
+    protected void setSiblingIndex(int siblingIndex) {
+      reindexes++;
+      super.setSiblingIndex(siblingIndex);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import io.bazel.rules.closure.Webpath;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Checks that {@link Vulcanize#vulcanizeTo} writes the same bytes and script hashes as vulcanizing
+ * into a tree and printing it with {@code Html5Printer}.
+ */
+@RunWith(JUnit4.class)
+public final class VulcanizeStreamTest {
+
+  private static final Webpath INDEX = Webpath.get("/index.html");
+  private static final Webpath OUTPUT = Webpath.get("/out/index.html");
+
+  private Path directory;
+  private Webfiles.Builder manifest;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("VulcanizeStreamTest");
+    manifest = Webfiles.newBuilder();
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void imports() throws IOException {
+    addWebfile(
+        "/index.html",
+        "<!DOCTYPE html><html><head><meta charset=\"utf-8\">"
+            + "<link rel=\"import\" href=\"a.html\"><link rel=\"import\" href=\"b/b.html\">"
+            + "</head><body><div>main</div><script src=\"main.js\"></script></body></html>");
+    addWebfile(
+        "/a.html",
+        "<!-- @license A license --><link rel=\"import\" href=\"b/b.html\">"
+            + "<dom-module id=\"x-a\"><template><style>.a { color: red; }</style>"
+            + "<div class=\"a\">a &amp; &lt;b&gt;</div></template></dom-module>"
+            + "<script>var a = 1 < 2 && \"&amp;\";</script>");
+    addWebfile(
+        "/b/b.html",
+        "<!--\n@license\nB license\n--><link rel=\"stylesheet\" href=\"b.css\">"
+            + "<img src=\"b.png\"><script src=\"b.js\"></script><!-- dropped -->");
+    addWebfile("/b/b.css", ".b { background: url(b.png); }\n");
+    addWebfile("/b/b.js", "var b = 'b';\n");
+    addWebfile("/main.js", "console.log(a, b);\n");
+    assertStreamSameAsTree();
+  }
+
+  @Test
+  public void doctypeAndEmptyAttributes() throws IOException {
+    addWebfile(
+        "/index.html",
+        "<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01//EN\">"
+            + "<html><head><link rel=\"import\" href=\"a.html\"></head>"
+            + "<body><input value=\"\" disabled checked=\"\"><div title=\"\" class></div>"
+            + "<script async>x();</script></body></html>");
+    addWebfile("/a.html", "<a href=\"\" hidden=\"hidden\">a</a><p data-x=\"\">p</p>");
+    assertStreamSameAsTree();
+  }
+
+  @Test
+  public void demoSnippet() throws IOException {
+    addWebfile(
+        "/index.html",
+        "<!doctype html><html><head><link rel=\"import\" href=\"a.html\"></head><body>"
+            + "<demo-snippet><template><link rel=\"import\" href=\"a.html\">"
+            + "<!-- kept --><script>demo();</script></template></demo-snippet></body></html>");
+    addWebfile("/a.html", "<script>a();</script>");
+    assertStreamSameAsTree();
+  }
+
+  @Test
+  public void synthetic() throws IOException {
+    try (SyntheticWebfiles webfiles =
+        SyntheticWebfiles.builder().setDocuments(30).setScriptBytes(256).build()) {
+      manifest.mergeFrom(webfiles.getManifest());
+      assertStreamSameAsTree(SyntheticWebfiles.INDEX);
+    }
+  }
+
+  @Test
+  public void streamDocuments_failsWithWholeDocumentOptions() {
+    for (Vulcanize.Options.Builder options :
+        Arrays.asList(
+            Vulcanize.Options.builder().setCompile(true),
+            Vulcanize.Options.builder().addChunk(INDEX, Webpath.get("/chunk.html")),
+            Vulcanize.Options.builder().setMinifyStyles(true))) {
+      try {
+        options.setStreamDocuments(true).build();
+        fail("Built options that stream and need the whole document");
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  private void addWebfile(String webpath, String content) throws IOException {
+    Path path = directory.resolve(String.format("%d.src", manifest.getSrcCount()));
+    Files.write(path, content.getBytes(UTF_8));
+    manifest.addSrc(WebfilesSource.newBuilder().setPath(path.toString()).setWebpath(webpath));
+  }
+
+  private void assertStreamSameAsTree() throws IOException {
+    assertStreamSameAsTree(INDEX);
+  }
+
+  private void assertStreamSameAsTree(Webpath input) throws IOException {
+    Path treeHtml = directory.resolve("tree.html");
+    Path treeShasum = directory.resolve("tree.sha256");
+    Vulcanize.Result tree =
+        Vulcanize.vulcanize(
+            input,
+            OUTPUT,
+            Vulcanize.Options.builder()
+                .addWebfiles(manifest.build())
+                .setStreamOutput(false)
+                .build());
+    tree.writeHtml(treeHtml);
+    tree.writeShasum(treeShasum);
+
+    Path streamedHtml = directory.resolve("streamed.html");
+    List<String> hashes =
+        Vulcanize.vulcanizeTo(
+            input,
+            OUTPUT,
+            Vulcanize.Options.builder()
+                .addWebfiles(manifest.build())
+                .setStreamDocuments(true)
+                .build(),
+            streamedHtml);
+
+    assertEquals(readString(treeHtml), readString(streamedHtml));
+    assertEquals(readString(treeShasum), String.join("\n", hashes));
+  }
+
+  private static String readString(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), UTF_8);
+  }
+}
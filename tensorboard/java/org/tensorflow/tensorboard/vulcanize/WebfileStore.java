@@ -0,0 +1,215 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import io.bazel.rules.closure.Webpath;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contents of the webfiles, which are read from disk at most once no matter how many times or by
+ * how many threads they're asked for.
+ *
+ * <p>Small files are read onto the heap and large ones are memory-mapped. Either way, callers get
+ * their own read-only view of the same bytes, and the UTF-8 decoding of a file is computed on
+ * first use and then shared too. The webfiles are inputs of the build, so nothing is invalidated.
+ *
+ * <p>A store that doesn't retain reads each file every time it's asked for, and keeps nothing, for
+ * callers that use each file once and would rather not hold all of them at the end.
+ */
+final class WebfileStore {
+
+  // Below this, a read is cheaper than setting up and tearing down a mapping.
+  private static final long MAP_THRESHOLD = 256 * 1024;
+
+  private final ImmutableMap<Webpath, Path> webfiles;
+  private final boolean retain;
+  private final ConcurrentMap<Webpath, Content> contents = new ConcurrentHashMap<>();
+  private final AtomicInteger filesRead = new AtomicInteger();
+  private final AtomicInteger filesMapped = new AtomicInteger();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicInteger duplicateReadsAvoided = new AtomicInteger();
+
+  WebfileStore(ImmutableMap<Webpath, Path> webfiles) {
+    this(webfiles, true);
+  }
+
+  /** Creates a store that keeps what it reads if {@code retain} is true. */
+  WebfileStore(ImmutableMap<Webpath, Path> webfiles, boolean retain) {
+    this.webfiles = webfiles;
+    this.retain = retain;
+  }
+
+  boolean contains(Webpath path) {
+    return webfiles.containsKey(path);
+  }
+
+  /** Returns the file {@code path} refers to, or null if it isn't a webfile. */
+  Path getPath(Webpath path) {
+    return webfiles.get(path);
+  }
+
+  /** Returns a read-only view of the bytes of a webfile, positioned at the start. */
+  ByteBuffer getBytes(Webpath path) throws IOException {
+    return getContent(path).bytes.asReadOnlyBuffer();
+  }
+
+  /** Returns the bytes of a webfile as a stream, without copying them. */
+  InputStream newInputStream(Webpath path) throws IOException {
+    return new ByteBufferInputStream(getBytes(path));
+  }
+
+  /** Returns the content of a webfile decoded as UTF-8. */
+  String getString(Webpath path) throws IOException {
+    return getContent(path).getString();
+  }
+
+  int getFilesRead() {
+    return filesRead.get();
+  }
+
+  int getFilesMapped() {
+    return filesMapped.get();
+  }
+
+  long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /** Returns how many times a file was asked for again after it had been read. */
+  int getDuplicateReadsAvoided() {
+    return duplicateReadsAvoided.get();
+  }
+
+  private Content getContent(Webpath path) throws IOException {
+    Content content = contents.get(path);
+    if (content != null) {
+      duplicateReadsAvoided.incrementAndGet();
+      return content;
+    }
+    Path file = webfiles.get(path);
+    if (file == null) {
+      throw new FileNotFoundException("Not a webfile: " + path);
+    }
+    if (!retain) {
+      return load(file);
+    }
+    try {
+      // Loading inside computeIfAbsent guarantees each file is read once, even when several
+      // threads ask for it at the same time.
+      return contents.computeIfAbsent(
+          path,
+          p -> {
+            try {
+              return load(file);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private Content load(Path file) throws IOException {
+    ByteBuffer bytes;
+    try (FileChannel channel = FileChannel.open(file)) {
+      long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        filesMapped.incrementAndGet();
+      } else {
+        bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+      }
+    }
+    filesRead.incrementAndGet();
+    bytesRead.addAndGet(bytes.remaining());
+    return new Content(bytes.asReadOnlyBuffer());
+  }
+
+  private static final class Content {
+    private final ByteBuffer bytes;
+    private volatile String string;
+
+    Content(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    String getString() {
+      String result = string;
+      if (result == null) {
+        synchronized (this) {
+          result = string;
+          if (result == null) {
+            result = UTF_8.decode(bytes.duplicate()).toString();
+            string = result;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
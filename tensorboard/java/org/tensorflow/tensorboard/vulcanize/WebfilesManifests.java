@@ -0,0 +1,93 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.TextFormat;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads webfiles manifests, which are {@link Webfiles} protos in either text ({@code .pbtxt}) or
+ * binary ({@code .pb}) format.
+ *
+ * <p>An action gets one manifest per web_library it depends on, often hundreds of them, and the
+ * text format parser is slow, so they're parsed concurrently.
+ */
+final class WebfilesManifests {
+
+  private WebfilesManifests() {}
+
+  /** Returns whether {@code path} names a manifest. */
+  static boolean isManifest(String path) {
+    return path.endsWith(".pbtxt") || path.endsWith(".pb");
+  }
+
+  /** Parses the manifest at {@code path}. */
+  static Webfiles load(Path path) throws IOException {
+    byte[] bytes = Files.readAllBytes(path);
+    if (path.toString().endsWith(".pb")) {
+      return Webfiles.parseFrom(bytes);
+    }
+    if (!path.toString().endsWith(".pbtxt")) {
+      throw new IOException("Not a webfiles manifest: " + path);
+    }
+    Webfiles.Builder build = Webfiles.newBuilder();
+    TextFormat.getParser().merge(new String(bytes, UTF_8), build);
+    return build.build();
+  }
+
+  /** Parses all of {@code paths} concurrently, and returns the manifests in the same order. */
+  static ImmutableList<Webfiles> loadAll(List<Path> paths) throws IOException {
+    try {
+      return paths
+          .parallelStream()
+          .map(
+              path -> {
+                try {
+                  return load(path);
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              })
+          .collect(ImmutableList.toImmutableList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Returns the sources of {@code manifests} by webpath, in the order they're first listed, where
+   * the first manifest listing a webpath decides its path.
+   */
+  static Map<String, WebfilesSource> merge(List<Webfiles> manifests) {
+    Map<String, WebfilesSource> sources = new LinkedHashMap<>();
+    for (Webfiles manifest : manifests) {
+      for (WebfilesSource src : manifest.getSrcList()) {
+        sources.putIfAbsent(src.getWebpath(), src);
+      }
+    }
+    return sources;
+  }
+}
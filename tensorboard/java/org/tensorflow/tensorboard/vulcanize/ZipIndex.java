@@ -0,0 +1,437 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedBytes;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Index of the entries of a zip written by {@link Zipper}, meant to be memory-mapped by a server.
+ *
+ * <p>Records have a fixed size and are sorted by the UTF-8 bytes of their webpaths, so an entry can
+ * be found by binary search without reading the zip's central directory, and without allocating
+ * anything but the key. The layout, in big-endian order, is:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    number of records
+ * int    number of content types
+ * records, RECORD_SIZE bytes each:
+ *   int    offset of the webpath in this file
+ *   int    length of the webpath
+ *   int    offset of the local header in the zip
+ *   int    offset of the compressed data in the zip
+ *   int    compressed size
+ *   int    uncompressed size
+ *   int    CRC-32 of the uncompressed content
+ *   short  zip method, i.e. stored or deflated
+ *   short  index of the content type
+ *   byte[] SHA-256 of the uncompressed content, 32 bytes
+ * content types, each a short length followed by UTF-8 bytes
+ * webpaths, UTF-8 bytes
+ * </pre>
+ *
+ * Offsets and sizes are unsigned, which is enough as long as the zip has no ZIP64. Webpaths are
+ * unique. Opening an index checks that everything it refers to is within the file, and that the
+ * records are in order, so a truncated or corrupt index is rejected rather than misread.
+ */
+final class ZipIndex {
+
+  static final int MAGIC = 0x54425a49; // "TBZI"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int RECORD_SIZE = 64;
+  static final int SHA256_SIZE = 32;
+
+  /** Content types by extension, as served by TensorBoard. */
+  static final ImmutableMap<String, String> CONTENT_TYPES =
+      ImmutableMap.<String, String>builder()
+          .put("css", "text/css")
+          .put("gif", "image/gif")
+          .put("html", "text/html")
+          .put("ico", "image/x-icon")
+          .put("jpeg", "image/jpeg")
+          .put("jpg", "image/jpeg")
+          .put("js", "application/javascript")
+          .put("json", "application/json")
+          .put("map", "application/json")
+          .put("png", "image/png")
+          .put("svg", "image/svg+xml")
+          .put("txt", "text/plain")
+          .put("wasm", "application/wasm")
+          .put("webp", "image/webp")
+          .put("woff", "font/woff")
+          .put("woff2", "font/woff2")
+          .build();
+
+  static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  private final ByteBuffer index;
+  private final int records;
+  private final String[] contentTypes;
+
+  private ZipIndex(ByteBuffer index) throws ZipException {
+    this.index = index;
+    check(
+        index.limit() >= HEADER_SIZE
+            && index.getInt(0) == MAGIC
+            && index.getInt(4) == VERSION,
+        "Not a zip index");
+    records = index.getInt(8);
+    int contentTypeCount = index.getInt(12);
+    check(
+        records >= 0
+            && contentTypeCount >= 0
+            && contentTypeCount <= 0xffff
+            && HEADER_SIZE + (long) records * RECORD_SIZE <= index.limit(),
+        "Truncated zip index");
+    contentTypes = new String[contentTypeCount];
+    int position = HEADER_SIZE + records * RECORD_SIZE;
+    for (int i = 0; i < contentTypes.length; i++) {
+      check(position + 2 <= index.limit(), "Truncated zip index");
+      byte[] bytes = new byte[index.getShort(position) & 0xffff];
+      check(position + 2 + bytes.length <= index.limit(), "Truncated zip index");
+      ((ByteBuffer) index.duplicate().position(position + 2)).get(bytes);
+      contentTypes[i] = new String(bytes, UTF_8);
+      position += 2 + bytes.length;
+    }
+    for (int record = 0; record < records; record++) {
+      int webpath = index.getInt(start(record));
+      int length = index.getInt(start(record) + 4);
+      check(
+          webpath >= position && length >= 0 && (long) webpath + length <= index.limit(),
+          "Truncated zip index");
+      check(
+          (index.getShort(start(record) + 30) & 0xffff) < contentTypes.length,
+          "Bad content type in zip index");
+      // Binary search needs the webpaths in order, which also makes them unique.
+      check(record == 0 || compareWebpaths(record - 1, record) < 0, "Zip index out of order");
+    }
+  }
+
+  /** Maps the index at {@code path}. */
+  static ZipIndex open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path)) {
+      return new ZipIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Indexes {@code zip} in memory, for zips that come without an index. */
+  static ZipIndex build(ZipReader zip) throws IOException {
+    Writer writer = new Writer();
+    for (String name : zip.getNames()) {
+      ZipReader.Entry entry = zip.getEntry(name);
+      ByteBuffer data = zip.getRawData(entry);
+      byte[] content = ZipReader.decompress(entry.method, data, entry.size);
+      writer.add(
+          "/" + name,
+          entry.method,
+          entry.crc,
+          entry.size,
+          entry.compressedSize,
+          entry.localHeaderOffset,
+          zip.getDataOffset(entry),
+          Hashing.sha256().hashBytes(content).asBytes());
+    }
+    return new ZipIndex(writer.toByteBuffer());
+  }
+
+  /**
+   * Fails unless this is the index of {@code zip}, i.e. it has the same entries at the same
+   * offsets, of the same sizes and CRC-32s.
+   */
+  void checkMatches(ZipReader zip) throws ZipException {
+    check(zip.getNames().size() == records, "Zip index has another number of entries than zip");
+    for (int record = 0; record < records; record++) {
+      String webpath = getWebpath(record);
+      ZipReader.Entry entry = webpath.startsWith("/") ? zip.getEntry(webpath.substring(1)) : null;
+      check(
+          entry != null
+              && entry.method == getMethod(record)
+              && entry.crc == getCrc(record)
+              && entry.size == getSize(record)
+              && entry.compressedSize == getCompressedSize(record)
+              && entry.localHeaderOffset == getLocalHeaderOffset(record)
+              && zip.getDataOffset(entry) == getDataOffset(record),
+          "Zip index doesn't match zip at " + webpath);
+    }
+  }
+
+  /** Returns the number of entries. */
+  int size() {
+    return records;
+  }
+
+  /** Returns the record of {@code webpath}, or a negative number if there's none. */
+  int find(String webpath) {
+    return find(webpath.getBytes(UTF_8));
+  }
+
+  /** Returns the record of the webpath whose UTF-8 bytes are {@code key}, or a negative number. */
+  int find(byte[] key) {
+    int low = 0;
+    int high = records - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compareWebpath(middle, key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  String getWebpath(int record) {
+    byte[] bytes = new byte[index.getInt(start(record) + 4)];
+    ((ByteBuffer) index.duplicate().position(index.getInt(start(record)))).get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  long getLocalHeaderOffset(int record) {
+    return uint32(start(record) + 8);
+  }
+
+  long getDataOffset(int record) {
+    return uint32(start(record) + 12);
+  }
+
+  long getCompressedSize(int record) {
+    return uint32(start(record) + 16);
+  }
+
+  long getSize(int record) {
+    return uint32(start(record) + 20);
+  }
+
+  long getCrc(int record) {
+    return uint32(start(record) + 24);
+  }
+
+  int getMethod(int record) {
+    return index.getShort(start(record) + 28) & 0xffff;
+  }
+
+  String getContentType(int record) {
+    return contentTypes[index.getShort(start(record) + 30) & 0xffff];
+  }
+
+  /** Returns a read-only view of the SHA-256 of the uncompressed content. */
+  ByteBuffer getSha256(int record) {
+    ByteBuffer sha256 = index.asReadOnlyBuffer();
+    sha256.position(start(record) + 32).limit(start(record) + 32 + SHA256_SIZE);
+    return sha256.slice();
+  }
+
+  private static int start(int record) {
+    return HEADER_SIZE + record * RECORD_SIZE;
+  }
+
+  private int compareWebpath(int record, byte[] key) {
+    int webpath = index.getInt(start(record));
+    int length = index.getInt(start(record) + 4);
+    int common = Math.min(length, key.length);
+    for (int i = 0; i < common; i++) {
+      int comparison = UnsignedBytes.compare(index.get(webpath + i), key[i]);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return length - key.length;
+  }
+
+  private int compareWebpaths(int a, int b) {
+    int aWebpath = index.getInt(start(a));
+    int aLength = index.getInt(start(a) + 4);
+    int bWebpath = index.getInt(start(b));
+    int bLength = index.getInt(start(b) + 4);
+    int common = Math.min(aLength, bLength);
+    for (int i = 0; i < common; i++) {
+      int comparison = UnsignedBytes.compare(index.get(aWebpath + i), index.get(bWebpath + i));
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return aLength - bLength;
+  }
+
+  private long uint32(int position) {
+    return index.getInt(position) & 0xffffffffL;
+  }
+
+  private static void check(boolean condition, String message) throws ZipException {
+    if (!condition) {
+      throw new ZipException(message);
+    }
+  }
+
+  /** Returns the content type of {@code webpath}, guessed from its extension. */
+  static String guessContentType(String webpath) {
+    return CONTENT_TYPES.getOrDefault(
+        Files.getFileExtension(webpath).toLowerCase(Locale.ROOT), DEFAULT_CONTENT_TYPE);
+  }
+
+  /** Collects the entries of a zip as it's written. */
+  static final class Writer {
+    private final List<Record> records = new ArrayList<>();
+
+    /**
+     * Adds an entry.
+     *
+     * @param localHeaderOffset where {@link ZipWriter} wrote the entry
+     * @param dataOffset where the compressed data of the entry starts
+     * @param sha256 hash of the uncompressed content
+     */
+    void add(
+        String webpath,
+        int method,
+        long crc,
+        long size,
+        long compressedSize,
+        long localHeaderOffset,
+        long dataOffset,
+        byte[] sha256) {
+      checkArgument(sha256.length == SHA256_SIZE, "Not a SHA-256: %s", webpath);
+      records.add(
+          new Record(
+              webpath.getBytes(UTF_8),
+              method,
+              crc,
+              size,
+              compressedSize,
+              localHeaderOffset,
+              dataOffset,
+              sha256,
+              guessContentType(webpath)));
+    }
+
+    /** Writes the index to {@code path}. */
+    void write(Path path) throws IOException {
+      ByteBuffer index = toByteBuffer();
+      try (FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (index.hasRemaining()) {
+          channel.write(index);
+        }
+      }
+    }
+
+    private ByteBuffer toByteBuffer() {
+      Comparator<byte[]> order = UnsignedBytes.lexicographicalComparator();
+      records.sort((a, b) -> order.compare(a.webpath, b.webpath));
+      for (int i = 1; i < records.size(); i++) {
+        checkArgument(
+            order.compare(records.get(i - 1).webpath, records.get(i).webpath) != 0,
+            "Duplicate webpath: %s",
+            new String(records.get(i).webpath, UTF_8));
+      }
+      Map<String, Integer> contentTypes = new LinkedHashMap<>();
+      int size = HEADER_SIZE + records.size() * RECORD_SIZE;
+      for (Record record : records) {
+        if (!contentTypes.containsKey(record.contentType)) {
+          contentTypes.put(record.contentType, contentTypes.size());
+          size += 2 + record.contentType.getBytes(UTF_8).length;
+        }
+      }
+      int webpaths = size;
+      for (Record record : records) {
+        size += record.webpath.length;
+      }
+      ByteBuffer index = ByteBuffer.allocate(size);
+      index.putInt(MAGIC).putInt(VERSION).putInt(records.size()).putInt(contentTypes.size());
+      int webpath = webpaths;
+      for (Record record : records) {
+        index.putInt(webpath);
+        index.putInt(record.webpath.length);
+        index.putInt((int) record.localHeaderOffset);
+        index.putInt((int) record.dataOffset);
+        index.putInt((int) record.compressedSize);
+        index.putInt((int) record.size);
+        index.putInt((int) record.crc);
+        index.putShort((short) record.method);
+        index.putShort(contentTypes.get(record.contentType).shortValue());
+        index.put(record.sha256);
+        webpath += record.webpath.length;
+      }
+      for (String contentType : contentTypes.keySet()) {
+        byte[] bytes = contentType.getBytes(UTF_8);
+        index.putShort((short) bytes.length).put(bytes);
+      }
+      for (Record record : records) {
+        index.put(record.webpath);
+      }
+      index.flip();
+      return index;
+    }
+  }
+
+  private static final class Record {
+    final byte[] webpath;
+    final int method;
+    final long crc;
+    final long size;
+    final long compressedSize;
+    final long localHeaderOffset;
+    final long dataOffset;
+    final byte[] sha256;
+    final String contentType;
+
+    Record(
+        byte[] webpath,
+        int method,
+        long crc,
+        long size,
+        long compressedSize,
+        long localHeaderOffset,
+        long dataOffset,
+        byte[] sha256,
+        String contentType) {
+      this.webpath = webpath;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.localHeaderOffset = localHeaderOffset;
+      this.dataOffset = dataOffset;
+      this.sha256 = sha256;
+      this.contentType = contentType;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Looks up entries in a {@link ZipIndex}, and checks that broken indexes are rejected. */
+@RunWith(JUnit4.class)
+public final class ZipIndexTest {
+
+  // In the order of their UTF-8 bytes, which puts "é" after all of ASCII.
+  private static final List<String> WEBPATHS =
+      Arrays.asList("/a.js", "/b/c.css", "/index.html", "/z.png", "/é.txt");
+
+  private Path directory;
+  private Path indexFile;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("ZipIndexTest");
+    indexFile = directory.resolve("test.idx");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void find() throws IOException {
+    List<String> shuffled = new ArrayList<>(WEBPATHS);
+    Collections.shuffle(shuffled, new Random(42));
+    ZipIndex index = write(shuffled);
+
+    assertEquals(WEBPATHS.size(), index.size());
+    for (int i = 0; i < WEBPATHS.size(); i++) {
+      String webpath = WEBPATHS.get(i);
+      int record = index.find(webpath);
+      assertEquals(webpath, i, record);
+      assertEquals(webpath, index.getWebpath(record));
+      int n = shuffled.indexOf(webpath);
+      int method = n % 2 == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED;
+      assertEquals(webpath, method, index.getMethod(record));
+      assertEquals(webpath, crc(webpath), index.getCrc(record));
+      assertEquals(webpath, 1000 + n, index.getSize(record));
+      assertEquals(webpath, 500 + n, index.getCompressedSize(record));
+      assertEquals(webpath, 0xfffffff0L + n, index.getLocalHeaderOffset(record));
+      assertEquals(webpath, 100 * n, index.getDataOffset(record));
+      assertEquals(webpath, ByteBuffer.wrap(sha256(webpath)), index.getSha256(record));
+      assertEquals(webpath, ZipIndex.guessContentType(webpath), index.getContentType(record));
+    }
+    assertEquals(0, index.find("/a.js"));
+    assertEquals(WEBPATHS.size() - 1, index.find("/é.txt"));
+  }
+
+  @Test
+  public void find_missing() throws IOException {
+    ZipIndex index = write(WEBPATHS);
+    // Negative numbers encode where the webpath would be, like Arrays.binarySearch.
+    assertEquals(-1, index.find(""));
+    assertEquals(-1, index.find("/"));
+    assertEquals(-1, index.find("/a"));
+    assertEquals(-2, index.find("/a.jsx"));
+    assertEquals(-2, index.find("/b"));
+    assertEquals(-4, index.find("/z"));
+    assertEquals(-5, index.find("/zz"));
+    assertEquals(-6, index.find("/ÿ"));
+    assertEquals(-1, write(Collections.emptyList()).find("/a.js"));
+  }
+
+  @Test
+  public void find_many() throws IOException {
+    List<String> webpaths = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      webpaths.add(String.format("/%d/%x.js", i % 7, i));
+    }
+    ZipIndex index = write(webpaths);
+    List<String> sorted = new ArrayList<>(webpaths);
+    Collections.sort(sorted);
+    for (int i = 0; i < sorted.size(); i++) {
+      assertEquals(i, index.find(sorted.get(i)));
+      String prefix = sorted.get(i).substring(0, sorted.get(i).length() - 1);
+      assertEquals(-(i + 1), index.find(prefix));
+    }
+  }
+
+  @Test
+  public void duplicateWebpath_isRejected() throws IOException {
+    try {
+      write(Arrays.asList("/a.js", "/b.js", "/a.js"));
+      fail("Wrote an index with a webpath twice");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void truncatedIndex_isRejected() throws IOException {
+    write(WEBPATHS);
+    byte[] bytes = Files.readAllBytes(indexFile);
+    for (int length = 0; length < bytes.length; length++) {
+      assertRejected(Arrays.copyOf(bytes, length));
+    }
+  }
+
+  @Test
+  public void corruptIndex_isRejected() throws IOException {
+    write(WEBPATHS);
+    byte[] bytes = Files.readAllBytes(indexFile);
+
+    ByteBuffer magic = ByteBuffer.wrap(bytes.clone());
+    magic.putInt(0, ZipIndex.MAGIC + 1);
+    assertRejected(magic.array());
+
+    ByteBuffer version = ByteBuffer.wrap(bytes.clone());
+    version.putInt(4, ZipIndex.VERSION + 1);
+    assertRejected(version.array());
+
+    ByteBuffer records = ByteBuffer.wrap(bytes.clone());
+    records.putInt(8, Integer.MAX_VALUE);
+    assertRejected(records.array());
+
+    ByteBuffer contentType = ByteBuffer.wrap(bytes.clone());
+    contentType.putShort(ZipIndex.HEADER_SIZE + 30, (short) 0x7fff);
+    assertRejected(contentType.array());
+
+    // Swapping the first two records puts them out of order.
+    byte[] swapped = bytes.clone();
+    System.arraycopy(bytes, record(1), swapped, record(0), ZipIndex.RECORD_SIZE);
+    System.arraycopy(bytes, record(0), swapped, record(1), ZipIndex.RECORD_SIZE);
+    assertRejected(swapped);
+
+    // Pointing the second record at the webpath of the first makes it a duplicate.
+    byte[] duplicate = bytes.clone();
+    System.arraycopy(bytes, record(0), duplicate, record(1), 8);
+    assertRejected(duplicate);
+  }
+
+  @Test
+  public void checkMatches() throws IOException {
+    Path zipFile = directory.resolve("test.zip");
+    writeZip(zipFile, "first");
+    Path otherZipFile = directory.resolve("other.zip");
+    writeZip(otherZipFile, "second");
+    Path fewerZipFile = directory.resolve("fewer.zip");
+    try (ZipWriter writer = new ZipWriter(fewerZipFile)) {
+      writer.write("a.js", ZipEntry.STORED, 0, 0, ByteBuffer.allocate(0));
+    }
+
+    try (ZipReader zip = ZipReader.open(zipFile);
+        ZipReader other = ZipReader.open(otherZipFile);
+        ZipReader fewer = ZipReader.open(fewerZipFile)) {
+      ZipIndex index = ZipIndex.build(zip);
+      index.checkMatches(zip);
+      for (ZipReader mismatched : Arrays.asList(other, fewer)) {
+        try {
+          index.checkMatches(mismatched);
+          fail("An index matched another zip");
+        } catch (ZipException e) {
+          // Expected.
+        }
+      }
+    }
+  }
+
+  /** Writes an index of {@code webpaths} to {@link #indexFile} and opens it. */
+  private ZipIndex write(List<String> webpaths) throws IOException {
+    ZipIndex.Writer writer = new ZipIndex.Writer();
+    for (int n = 0; n < webpaths.size(); n++) {
+      String webpath = webpaths.get(n);
+      writer.add(
+          webpath,
+          n % 2 == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED,
+          crc(webpath),
+          1000 + n,
+          500 + n,
+          0xfffffff0L + n,
+          100 * n,
+          sha256(webpath));
+    }
+    writer.write(indexFile);
+    return ZipIndex.open(indexFile);
+  }
+
+  private void assertRejected(byte[] bytes) throws IOException {
+    Files.write(indexFile, bytes);
+    try {
+      ZipIndex.open(indexFile);
+      fail("Opened a broken index of " + bytes.length + " bytes");
+    } catch (ZipException e) {
+      // Expected.
+    }
+  }
+
+  private static void writeZip(Path path, String content) throws IOException {
+    try (ZipWriter writer = new ZipWriter(path)) {
+      for (String webpath : WEBPATHS) {
+        byte[] bytes = (webpath + content).getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        writer.write(
+            webpath.substring(1),
+            ZipEntry.STORED,
+            crc.getValue(),
+            bytes.length,
+            ByteBuffer.wrap(bytes));
+      }
+    }
+  }
+
+  private static int record(int record) {
+    return ZipIndex.HEADER_SIZE + record * ZipIndex.RECORD_SIZE;
+  }
+
+  private static long crc(String webpath) {
+    CRC32 crc = new CRC32();
+    crc.update(webpath.getBytes(UTF_8));
+    return crc.getValue();
+  }
+
+  private static byte[] sha256(String webpath) {
+    return Hashing.sha256().hashString(webpath, UTF_8).asBytes();
+  }
+}
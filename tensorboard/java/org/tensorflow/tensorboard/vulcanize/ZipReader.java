@@ -0,0 +1,208 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip, giving access to the compressed bytes of its entries.
+ *
+ * <p>This is the counterpart of {@link ZipWriter}: {@link java.util.zip.ZipFile} only hands out
+ * decompressed content, whereas entries that didn't change can be copied from one zip to another
+ * as is. The file is memory-mapped, so only what's copied gets read. ZIP64 entries are ignored.
+ *
+ * <p>The file stays open until the reader is closed, after which its data mustn't be used.
+ */
+final class ZipReader implements Closeable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_SIZE = 22;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final long ZIP64_MAGIC = 0xffffffffL;
+
+  private final FileChannel channel;
+  private final ByteBuffer zip;
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  private ZipReader(FileChannel channel, ByteBuffer zip) throws ZipException {
+    this.channel = channel;
+    this.zip = zip;
+    int end = findEnd();
+    int count = zip.getShort(end + 10) & 0xffff;
+    int position = (int) uint32(end + 16);
+    for (int i = 0; i < count; i++) {
+      check(position + CENTRAL_HEADER_SIZE <= zip.limit(), "Truncated central directory");
+      check(zip.getInt(position) == CENTRAL_HEADER_SIGNATURE, "Bad central directory entry");
+      int nameLength = zip.getShort(position + 28) & 0xffff;
+      int extraLength = zip.getShort(position + 30) & 0xffff;
+      int commentLength = zip.getShort(position + 32) & 0xffff;
+      Entry entry =
+          new Entry(
+              zip.getShort(position + 10) & 0xffff,
+              uint32(position + 16),
+              uint32(position + 24),
+              uint32(position + 20),
+              uint32(position + 42));
+      byte[] name = new byte[nameLength];
+      ((ByteBuffer) zip.duplicate().position(position + CENTRAL_HEADER_SIZE)).get(name);
+      if (entry.size != ZIP64_MAGIC
+          && entry.compressedSize != ZIP64_MAGIC
+          && entry.localHeaderOffset != ZIP64_MAGIC) {
+        entries.put(new String(name, UTF_8), entry);
+      }
+      position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+  }
+
+  /** Maps {@code path} and reads its central directory. */
+  static ZipReader open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path);
+    try {
+      ByteBuffer zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ZipReader(channel, zip.order(ByteOrder.LITTLE_ENDIAN));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /** Returns the names of the entries. */
+  Set<String> getNames() {
+    return Collections.unmodifiableSet(entries.keySet());
+  }
+
+  /** Returns the entry named {@code name}, or null. */
+  Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /** Returns the stored or deflated bytes of {@code entry}, exactly as they are in the zip. */
+  ByteBuffer getRawData(Entry entry) throws ZipException {
+    int start = (int) getDataOffset(entry);
+    check(start + entry.compressedSize <= zip.limit(), "Truncated entry data");
+    ByteBuffer data = zip.duplicate();
+    data.position(start).limit(start + (int) entry.compressedSize);
+    return data.slice();
+  }
+
+  /** Returns where the stored or deflated bytes of {@code entry} start in the zip. */
+  long getDataOffset(Entry entry) throws ZipException {
+    int header = (int) entry.localHeaderOffset;
+    check(header + LOCAL_HEADER_SIZE <= zip.limit(), "Truncated local header");
+    check(zip.getInt(header) == LOCAL_HEADER_SIGNATURE, "Bad local header");
+    // The local extra field may differ from the central one, so it has to be read from here.
+    return header
+        + LOCAL_HEADER_SIZE
+        + (zip.getShort(header + 26) & 0xffff)
+        + (zip.getShort(header + 28) & 0xffff);
+  }
+
+  /** Returns the content of an entry, given its {@code method}, raw {@code data} and size. */
+  static byte[] decompress(int method, ByteBuffer data, long size) throws ZipException {
+    byte[] content = new byte[(int) size];
+    if (method == ZipEntry.STORED) {
+      check(data.remaining() == size, "Stored sizes differ");
+      data.duplicate().get(content);
+      return content;
+    }
+    check(method == ZipEntry.DEFLATED, "Unsupported compression method");
+    // Raw inflate wants an extra byte after the compressed data.
+    byte[] compressed = new byte[data.remaining() + 1];
+    data.duplicate().get(compressed, 0, data.remaining());
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressed);
+      int length = 0;
+      // Once the content is full, inflating on into a spare byte finds the end of the stream,
+      // which an empty entry still has, or content that's longer than it should be.
+      byte[] spare = new byte[1];
+      while (!inflater.finished()) {
+        check(!inflater.needsInput() && !inflater.needsDictionary(), "Truncated entry");
+        if (length < content.length) {
+          length += inflater.inflate(content, length, content.length - length);
+        } else {
+          check(inflater.inflate(spare) == 0, "Inflated sizes differ");
+        }
+      }
+      check(length == content.length, "Inflated sizes differ");
+      return content;
+    } catch (DataFormatException e) {
+      throw new ZipException("Bad deflate stream: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private int findEnd() throws ZipException {
+    // The end record is followed by a comment of up to 64 KiB.
+    int last = zip.limit() - END_SIZE;
+    for (int position = last; position >= 0 && position >= last - 0xffff; position--) {
+      if (zip.getInt(position) == END_SIGNATURE) {
+        return position;
+      }
+    }
+    throw new ZipException("Not a zip file");
+  }
+
+  private long uint32(int position) {
+    return zip.getInt(position) & 0xffffffffL;
+  }
+
+  private static void check(boolean condition, String message) throws ZipException {
+    if (!condition) {
+      throw new ZipException(message);
+    }
+  }
+
+  /** Central directory record of an entry. */
+  static final class Entry {
+    final int method;
+    final long crc;
+    final long size;
+    final long compressedSize;
+    final long localHeaderOffset;
+
+    private Entry(int method, long crc, long size, long compressedSize, long localHeaderOffset) {
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+}
@@ -0,0 +1,509 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Ascii;
+import com.google.common.io.BaseEncoding;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+/**
+ * HTTP server for the static assets in a zip written by {@link Zipper}, without extracting it.
+ *
+ * <p>The zip is memory-mapped, and entries are found through a {@link ZipIndex}. Responses are
+ * gathering writes of slices of the mapping, so the content of an entry is never copied into the
+ * heap. A deflated entry goes out as is to clients that accept gzip, framed by a gzip header and a
+ * trailer made of the CRC-32 and size that the zip already has. HTTP's "deflate" coding would need
+ * an Adler-32 of the content, which the zip doesn't have, so it isn't offered. Other clients get
+ * the entry inflated, which is the only case where the content is copied.
+ *
+ * <p>ETags are the SHA-256 of the content, suffixed with the coding when there is one. They're used
+ * for {@code If-None-Match} and {@code If-Range}. Single byte ranges of either coding are served as
+ * well. One thread runs all connections, since there's nothing left for it to do but write.
+ *
+ * <pre>
+ * bazel run //tensorboard/java/org/tensorflow/tensorboard/vulcanize:ZipServer -- \
+ *     --port=6006 --index_file=$PWD/bazel-bin/tensorboard/assets.idx \
+ *     $PWD/bazel-bin/tensorboard/assets.zip
+ * </pre>
+ */
+public final class ZipServer implements Closeable {
+
+  private static final String PORT_FLAG = "--port=";
+  private static final String INDEX_FILE_FLAG = "--index_file=";
+  private static final int MAX_REQUEST_BYTES = 16 * 1024;
+  private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+  private static final ByteBuffer GZIP_HEADER =
+      ByteBuffer.wrap(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff})
+          .asReadOnlyBuffer();
+  private static final int GZIP_TRAILER_SIZE = 8;
+  private static final ByteBuffer[] NO_BODY = new ByteBuffer[0];
+
+  // Same as _ALLOWS_GZIP_PATTERN in tensorboard/backend/http_util.py.
+  private static final Pattern ALLOWS_GZIP =
+      Pattern.compile("(?:^|,|\\s)(?:(?:x-)?gzip|\\*)(?!;q=0)(?:\\s|,|$)");
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+  private final ByteBuffer zip;
+  private final ZipIndex index;
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private volatile boolean closed;
+
+  /** Serves the entries of the zip at {@code path}, as listed by {@code index}, on {@code port}. */
+  ZipServer(Path path, ZipIndex index, int port) throws IOException {
+    try (FileChannel channel = FileChannel.open(path)) {
+      zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    this.index = index;
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 6006;
+    Path indexFile = null;
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      if (args[first].startsWith(PORT_FLAG)) {
+        port = Integer.parseInt(args[first].substring(PORT_FLAG.length()));
+      } else if (args[first].startsWith(INDEX_FILE_FLAG)) {
+        indexFile = Paths.get(args[first].substring(INDEX_FILE_FLAG.length()));
+      } else {
+        throw new IllegalArgumentException("Unknown flag: " + args[first]);
+      }
+    }
+    Path zipFile = Paths.get(args[first]);
+    try (ZipServer server = new ZipServer(zipFile, openIndex(zipFile, indexFile), port)) {
+      System.err.printf(
+          "Serving %d entries of %s at http://localhost:%d/%n",
+          server.index.size(), zipFile, server.getPort());
+      server.run();
+    }
+  }
+
+  /**
+   * Returns the index at {@code indexFile}, once it's checked to be the one of {@code zipFile}, or
+   * indexes {@code zipFile} if there's none.
+   */
+  static ZipIndex openIndex(Path zipFile, Path indexFile) throws IOException {
+    try (ZipReader zip = ZipReader.open(zipFile)) {
+      if (indexFile == null) {
+        return ZipIndex.build(zip);
+      }
+      ZipIndex index = ZipIndex.open(indexFile);
+      index.checkMatches(zip);
+      return index;
+    }
+  }
+
+  /** Returns the port the server listens on, which is useful when it was asked for any. */
+  int getPort() throws IOException {
+    return ((InetSocketAddress) server.getLocalAddress()).getPort();
+  }
+
+  /** Serves requests until {@link #close} is called. */
+  void run() throws IOException {
+    while (!closed) {
+      selector.select();
+      for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept();
+          continue;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+          connection.onReady(key.isReadable());
+        } catch (IOException e) {
+          // The client went away, which is none of the server's business.
+          connection.close();
+        } catch (RuntimeException e) {
+          // A bug mustn't take the other connections down with this one.
+          e.printStackTrace();
+          connection.fail();
+        }
+      }
+    }
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
+    }
+    selector.close();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(channel, key));
+  }
+
+  /** Returns the status line, headers and body of the response to {@code head}. */
+  private Response respond(String head) {
+    String[] lines = head.split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+      return Response.error(400, "Bad Request");
+    }
+    Map<String, String> headers = new HashMap<>();
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0) {
+        headers.put(
+            Ascii.toLowerCase(lines[i].substring(0, colon).trim()),
+            lines[i].substring(colon + 1).trim());
+      }
+    }
+    boolean keepAlive =
+        requestLine[2].equals("HTTP/1.1")
+            ? !"close".equalsIgnoreCase(headers.get("connection"))
+            : "keep-alive".equalsIgnoreCase(headers.get("connection"));
+    Response response = respond(requestLine[0], requestLine[1], headers);
+    response.keepAlive &= keepAlive;
+    if (requestLine[0].equals("HEAD")) {
+      response.body = NO_BODY;
+    }
+    return response;
+  }
+
+  private Response respond(String method, String target, Map<String, String> headers) {
+    if (!method.equals("GET") && !method.equals("HEAD")) {
+      return Response.error(405, "Method Not Allowed").header("Allow", "GET, HEAD");
+    }
+    String webpath;
+    try {
+      webpath = new URI(target).getPath();
+    } catch (URISyntaxException e) {
+      return Response.error(400, "Bad Request");
+    }
+    if (webpath == null || !webpath.startsWith("/")) {
+      return Response.error(400, "Bad Request");
+    }
+    if (webpath.endsWith("/")) {
+      webpath += "index.html";
+    }
+    int record = index.find(webpath);
+    if (record < 0) {
+      return Response.error(404, "Not Found");
+    }
+    ByteBuffer data = zip.duplicate();
+    data.position((int) index.getDataOffset(record));
+    data.limit(data.position() + (int) index.getCompressedSize(record));
+    data = data.slice();
+    ByteBuffer[] body;
+    String coding = null;
+    if (index.getMethod(record) == ZipEntry.STORED) {
+      body = new ByteBuffer[] {data};
+    } else if (ALLOWS_GZIP.matcher(headers.getOrDefault("accept-encoding", "")).find()) {
+      coding = "gzip";
+      ByteBuffer trailer = ByteBuffer.allocate(GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      trailer.putInt((int) index.getCrc(record)).putInt((int) index.getSize(record)).flip();
+      body = new ByteBuffer[] {GZIP_HEADER.duplicate(), data, trailer};
+    } else {
+      try {
+        body =
+            new ByteBuffer[] {
+              ByteBuffer.wrap(
+                  ZipReader.decompress(index.getMethod(record), data, index.getSize(record)))
+            };
+      } catch (IOException e) {
+        return Response.error(500, "Internal Server Error");
+      }
+    }
+    String etag =
+        '"'
+            + BaseEncoding.base16().lowerCase().encode(getSha256(record))
+            + (coding != null ? "-" + coding : "")
+            + '"';
+    Response response = new Response(200, "OK");
+    response.header("ETag", etag).header("Vary", "Accept-Encoding");
+    String ifNoneMatch = headers.get("if-none-match");
+    if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+      response.status = 304;
+      response.reason = "Not Modified";
+      return response;
+    }
+    response.header("Content-Type", index.getContentType(record));
+    response.header("Accept-Ranges", "bytes");
+    if (coding != null) {
+      response.header("Content-Encoding", coding);
+    }
+    long length = remaining(body);
+    String ifRange = headers.get("if-range");
+    long[] range =
+        ifRange == null || ifRange.equals(etag) ? parseRange(headers.get("range"), length) : null;
+    if (range != null) {
+      if (range[0] > range[1]) {
+        return Response.error(416, "Range Not Satisfiable")
+            .header("Content-Range", "bytes */" + length);
+      }
+      response.status = 206;
+      response.reason = "Partial Content";
+      response.header(
+          "Content-Range", String.format("bytes %d-%d/%d", range[0], range[1], length));
+      body = slice(body, range[0], range[1] - range[0] + 1);
+      length = range[1] - range[0] + 1;
+    }
+    response.header("Content-Length", Long.toString(length));
+    response.body = body;
+    return response;
+  }
+
+  /**
+   * Returns the first and last byte of a single byte {@code range} of a body of {@code length}
+   * bytes, where the first is after the last if it can't be satisfied, or null to ignore it.
+   */
+  private static long[] parseRange(String range, long length) {
+    Matcher matcher = RANGE.matcher(range != null ? range : "");
+    if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+      return null;
+    }
+    try {
+      if (matcher.group(1).isEmpty()) {
+        return new long[] {Math.max(0, length - Long.parseLong(matcher.group(2))), length - 1};
+      }
+      long start = Long.parseLong(matcher.group(1));
+      if (matcher.group(2).isEmpty()) {
+        return new long[] {start, length - 1};
+      }
+      long end = Long.parseLong(matcher.group(2));
+      // RFC 7233 says a last byte before the first makes the range invalid rather than
+      // unsatisfiable, so it's ignored.
+      return end < start ? null : new long[] {start, Math.min(length - 1, end)};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private byte[] getSha256(int record) {
+    byte[] sha256 = new byte[ZipIndex.SHA256_SIZE];
+    index.getSha256(record).get(sha256);
+    return sha256;
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long remaining(ByteBuffer[] buffers) {
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    return remaining;
+  }
+
+  /** Returns views of {@code length} bytes of {@code buffers}, from {@code start}. */
+  private static ByteBuffer[] slice(ByteBuffer[] buffers, long start, long length) {
+    List<ByteBuffer> slices = new ArrayList<>();
+    for (ByteBuffer buffer : buffers) {
+      if (length == 0) {
+        break;
+      }
+      if (start >= buffer.remaining()) {
+        start -= buffer.remaining();
+        continue;
+      }
+      ByteBuffer slice = buffer.duplicate();
+      slice.position(slice.position() + (int) start);
+      slice.limit(slice.position() + (int) Math.min(length, slice.remaining()));
+      slices.add(slice);
+      length -= slice.remaining();
+      start = 0;
+    }
+    return slices.toArray(NO_BODY);
+  }
+
+  private static final class Response {
+    int status;
+    String reason;
+    final StringBuilder headers = new StringBuilder();
+    ByteBuffer[] body = NO_BODY;
+    boolean keepAlive = true;
+
+    Response(int status, String reason) {
+      this.status = status;
+      this.reason = reason;
+    }
+
+    static Response error(int status, String reason) {
+      Response response = new Response(status, reason);
+      ByteBuffer body = ByteBuffer.wrap((reason + "\n").getBytes(ISO_8859_1));
+      response.header("Content-Type", "text/plain");
+      response.header("Content-Length", Integer.toString(body.remaining()));
+      response.body = new ByteBuffer[] {body};
+      return response;
+    }
+
+    Response header(String name, String value) {
+      headers.append(name).append(": ").append(value).append("\r\n");
+      return this;
+    }
+
+    /** Returns the buffers to write, starting with the status line and headers. */
+    ByteBuffer[] toBuffers() {
+      String head =
+          String.format(
+              "HTTP/1.1 %d %s\r\n%s%s\r\n",
+              status, reason, headers, keepAlive ? "" : "Connection: close\r\n");
+      ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+      buffers[0] = ByteBuffer.wrap(head.getBytes(ISO_8859_1));
+      System.arraycopy(body, 0, buffers, 1, body.length);
+      return buffers;
+    }
+  }
+
+  /** Connection to a client, which may send requests back to back. */
+  private final class Connection {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+    private ByteBuffer[] response;
+    private boolean closeAfterResponse;
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+
+    /** Makes as much progress as the socket allows, reading first if it's {@code readable}. */
+    void onReady(boolean readable) throws IOException {
+      if (readable && channel.read(request) < 0) {
+        close();
+        return;
+      }
+      while (true) {
+        if (response != null) {
+          channel.write(response);
+          if (remaining(response) > 0) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
+          response = null;
+          if (closeAfterResponse) {
+            close();
+            return;
+          }
+        }
+        int end = findHeaderEnd();
+        if (end < 0) {
+          if (request.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+          }
+          Response tooLarge = Response.error(431, "Request Header Fields Too Large");
+          tooLarge.keepAlive = false;
+          send(tooLarge);
+          continue;
+        }
+        String head = new String(request.array(), 0, end, ISO_8859_1);
+        // Keeps whatever was sent after this request, i.e. the next ones.
+        request.flip().position(end + HEADER_END.length);
+        request.compact();
+        send(respond(head));
+      }
+    }
+
+    /**
+     * Answers with a 500 and closes, unless part of a response was written already, in which case
+     * it only closes.
+     */
+    void fail() {
+      if (response != null || !key.isValid()) {
+        close();
+        return;
+      }
+      Response error = Response.error(500, "Internal Server Error");
+      error.keepAlive = false;
+      send(error);
+      request.clear();
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void send(Response next) {
+      response = next.toBuffers();
+      closeAfterResponse = !next.keepAlive;
+    }
+
+    /** Returns where the head of the first request ends, or -1 if it hasn't been read yet. */
+    private int findHeaderEnd() {
+      byte[] bytes = request.array();
+      for (int i = 0; i + HEADER_END.length <= request.position(); i++) {
+        if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r'
+            && bytes[i + 3] == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    void close() {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Nothing left to do about it.
+      }
+    }
+  }
+}
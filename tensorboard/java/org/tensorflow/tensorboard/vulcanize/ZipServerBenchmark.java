@@ -0,0 +1,250 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Verify.verify;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.Futures;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test for {@link ZipServer}, which prints requests per second and latency percentiles.
+ *
+ * <p>Each connection is a thread sending keep-alive GET requests for random entries of the zip, one
+ * at a time, and timing how long the whole response takes to arrive. Unless {@code --address} is
+ * given, the server runs in the same process, on an ephemeral port. Run with e.g.
+ *
+ * <pre>
+ * bazel run //tensorboard/java/org/tensorflow/tensorboard/vulcanize:ZipServerBenchmark -- \
+ *     --connections=16 --requests=100000 --gzip=false $PWD/bazel-bin/tensorboard/assets.zip
+ * </pre>
+ */
+public final class ZipServerBenchmark {
+
+  private static final Pattern CONTENT_LENGTH =
+      Pattern.compile("(?im)^content-length:\\s*(\\d+)\\s*$");
+
+  private ZipServerBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int connections = 8;
+    int requests = 20000;
+    int warmup = 2000;
+    boolean gzip = true;
+    Path indexFile = null;
+    HostAndPort address = null;
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      String arg = args[first];
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--connections=")) {
+        connections = Integer.parseInt(value);
+      } else if (arg.startsWith("--requests=")) {
+        requests = Integer.parseInt(value);
+      } else if (arg.startsWith("--warmup=")) {
+        warmup = Integer.parseInt(value);
+      } else if (arg.startsWith("--gzip=")) {
+        gzip = Boolean.parseBoolean(value);
+      } else if (arg.startsWith("--index_file=")) {
+        indexFile = Paths.get(value);
+      } else if (arg.startsWith("--address=")) {
+        address = HostAndPort.fromString(value);
+      } else {
+        throw new IllegalArgumentException("Unknown flag: " + arg);
+      }
+    }
+    Path zipFile = Paths.get(args[first]);
+    ZipIndex index = ZipServer.openIndex(zipFile, indexFile);
+    List<String> targets = new ArrayList<>();
+    for (int i = 0; i < index.size(); i++) {
+      targets.add(new URI(null, null, index.getWebpath(i), null).getRawPath());
+    }
+    ZipServer server = null;
+    Thread serverThread = null;
+    if (address == null) {
+      server = new ZipServer(zipFile, index, 0);
+      address = HostAndPort.fromParts("localhost", server.getPort());
+      ZipServer running = server;
+      serverThread =
+          new Thread(
+              () -> {
+                try {
+                  running.run();
+                } catch (IOException e) {
+                  throw new RuntimeException(e);
+                }
+              });
+      serverThread.start();
+    }
+    try {
+      run(address, targets, gzip, connections, warmup);
+      long start = System.nanoTime();
+      Result result = run(address, targets, gzip, connections, requests);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long[] latencies = result.latencies;
+      Arrays.sort(latencies);
+      System.out.printf(
+          "%d requests over %d connections, gzip=%s, %d entries%n",
+          latencies.length, connections, gzip, targets.size());
+      System.out.printf(
+          "%.0f requests/s, %.1f MB/s%n", latencies.length / seconds, result.bytes / 1e6 / seconds);
+      System.out.printf(
+          "latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+          percentile(latencies, 0.5),
+          percentile(latencies, 0.9),
+          percentile(latencies, 0.99),
+          percentile(latencies, 0.999),
+          latencies[latencies.length - 1] / 1e6);
+    } finally {
+      if (server != null) {
+        server.close();
+        serverThread.join();
+      }
+    }
+  }
+
+  private static Result run(
+      HostAndPort address, List<String> targets, boolean gzip, int connections, int requests)
+      throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(connections);
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (int i = 0; i < connections; i++) {
+        int seed = i;
+        int count = requests / connections + (i < requests % connections ? 1 : 0);
+        futures.add(
+            pool.submit(
+                () -> {
+                  Random random = new Random(seed);
+                  Result result = new Result(new long[count]);
+                  try (Client client = new Client(address, gzip)) {
+                    for (int j = 0; j < count; j++) {
+                      long start = System.nanoTime();
+                      result.bytes += client.get(targets.get(random.nextInt(targets.size())));
+                      result.latencies[j] = System.nanoTime() - start;
+                    }
+                  }
+                  return result;
+                }));
+      }
+      Result total = new Result(new long[requests]);
+      int done = 0;
+      for (Future<Result> future : futures) {
+        Result result = Futures.getChecked(future, IOException.class);
+        System.arraycopy(result.latencies, 0, total.latencies, done, result.latencies.length);
+        done += result.latencies.length;
+        total.bytes += result.bytes;
+      }
+      return total;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1e6;
+  }
+
+  private static final class Result {
+    final long[] latencies;
+    long bytes;
+
+    Result(long[] latencies) {
+      this.latencies = latencies;
+    }
+  }
+
+  /** Minimal HTTP/1.1 client, which keeps its connection open and only understands 200s. */
+  private static final class Client implements Closeable {
+    private final SocketChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final String host;
+    private final boolean gzip;
+
+    Client(HostAndPort address, boolean gzip) throws IOException {
+      channel =
+          SocketChannel.open(new InetSocketAddress(address.getHost(), address.getPort()));
+      channel.socket().setTcpNoDelay(true);
+      host = address.toString();
+      this.gzip = gzip;
+    }
+
+    /** Requests {@code target} and returns the size of the response body. */
+    long get(String target) throws IOException {
+      String request =
+          String.format(
+              "GET %s HTTP/1.1\r\nHost: %s\r\n%s\r\n",
+              target, host, gzip ? "Accept-Encoding: gzip\r\n" : "");
+      ByteBuffer output = ByteBuffer.wrap(request.getBytes(ISO_8859_1));
+      while (output.hasRemaining()) {
+        channel.write(output);
+      }
+      buffer.clear();
+      int end;
+      while ((end = findHeaderEnd()) < 0) {
+        verify(buffer.hasRemaining(), "Response head too large for %s", target);
+        verify(channel.read(buffer) >= 0, "Connection closed while requesting %s", target);
+      }
+      String head = new String(buffer.array(), 0, end, ISO_8859_1);
+      verify(head.startsWith("HTTP/1.1 200 "), "Unexpected response to %s: %s", target, head);
+      Matcher matcher = CONTENT_LENGTH.matcher(head);
+      verify(matcher.find(), "No Content-Length for %s", target);
+      long length = Long.parseLong(matcher.group(1));
+      long remaining = length - (buffer.position() - end - 4);
+      while (remaining > 0) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        int n = channel.read(buffer);
+        verify(n >= 0, "Connection closed while reading %s", target);
+        remaining -= n;
+      }
+      return length;
+    }
+
+    private int findHeaderEnd() {
+      byte[] bytes = buffer.array();
+      for (int i = 0; i + 4 <= buffer.position(); i++) {
+        if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r'
+            && bytes[i + 3] == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,352 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Serves a zip written by {@link Zipper} with {@link ZipServer}, and sends it raw requests. */
+@RunWith(JUnit4.class)
+public final class ZipServerTest {
+
+  private static final byte[] HTML =
+      String.join("", Collections.nCopies(200, "<p>Hello, world!</p>\n")).getBytes(UTF_8);
+  private static final byte[] PNG = new byte[1000];
+
+  static {
+    new Random(42).nextBytes(PNG);
+  }
+
+  private Path directory;
+  private ZipServer server;
+  private Thread thread;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("ZipServerTest");
+    Files.write(directory.resolve("index.html"), HTML);
+    Files.write(directory.resolve("a.png"), PNG);
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    if (server != null) {
+      server.close();
+      thread.join();
+    }
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void identity() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    Response html = get("/index.html");
+    assertEquals(200, html.status);
+    assertEquals("text/html", html.headers.get("content-type"));
+    assertNull(html.headers.get("content-encoding"));
+    assertEquals(Integer.toString(HTML.length), html.headers.get("content-length"));
+    assertArrayEquals(HTML, html.body);
+    assertArrayEquals(HTML, get("/").body);
+
+    Response png = get("/a.png", "Accept-Encoding: gzip");
+    assertEquals(200, png.status);
+    assertNull(png.headers.get("content-encoding"));
+    assertArrayEquals(PNG, png.body);
+
+    assertEquals(404, get("/missing.js").status);
+    assertEquals(405, send("POST /index.html HTTP/1.1\r\n\r\n").status);
+  }
+
+  @Test
+  public void gzip() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    Response html = get("/index.html", "Accept-Encoding: deflate, gzip");
+    assertEquals(200, html.status);
+    assertEquals("gzip", html.headers.get("content-encoding"));
+    assertEquals(Integer.toString(html.body.length), html.headers.get("content-length"));
+    assertTrue(html.body.length < HTML.length);
+    assertArrayEquals(HTML, gunzip(html.body));
+    assertTrue(html.headers.get("etag").endsWith("-gzip\""));
+
+    Response refused = get("/index.html", "Accept-Encoding: gzip;q=0");
+    assertNull(refused.headers.get("content-encoding"));
+    assertArrayEquals(HTML, refused.body);
+  }
+
+  @Test
+  public void ifNoneMatch() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    String etag = get("/index.html").headers.get("etag");
+    String gzipEtag = get("/index.html", "Accept-Encoding: gzip").headers.get("etag");
+    assertFalse(etag.equals(gzipEtag));
+
+    Response notModified = get("/index.html", "If-None-Match: \"other\", " + etag);
+    assertEquals(304, notModified.status);
+    assertEquals(etag, notModified.headers.get("etag"));
+    assertEquals(0, notModified.body.length);
+
+    assertEquals(304, get("/index.html", "If-None-Match: W/" + etag).status);
+    assertEquals(304, get("/index.html", "If-None-Match: *").status);
+    assertEquals(
+        304, get("/index.html", "Accept-Encoding: gzip", "If-None-Match: " + gzipEtag).status);
+    // The gzip representation has another ETag.
+    assertEquals(200, get("/index.html", "If-None-Match: " + gzipEtag).status);
+  }
+
+  @Test
+  public void range() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    Response middle = get("/a.png", "Range: bytes=10-19");
+    assertEquals(206, middle.status);
+    assertEquals("bytes 10-19/" + PNG.length, middle.headers.get("content-range"));
+    assertEquals("10", middle.headers.get("content-length"));
+    assertArrayEquals(Arrays.copyOfRange(PNG, 10, 20), middle.body);
+
+    Response suffix = get("/a.png", "Range: bytes=-5");
+    assertEquals(206, suffix.status);
+    assertArrayEquals(Arrays.copyOfRange(PNG, PNG.length - 5, PNG.length), suffix.body);
+
+    Response open = get("/a.png", "Range: bytes=990-");
+    assertEquals(206, open.status);
+    assertArrayEquals(Arrays.copyOfRange(PNG, 990, PNG.length), open.body);
+
+    Response past = get("/a.png", "Range: bytes=990-5000");
+    assertEquals(206, past.status);
+    assertEquals("bytes 990-999/" + PNG.length, past.headers.get("content-range"));
+
+    // Ranges of the gzip coding are of the gzip stream.
+    Response gzip = get("/index.html", "Accept-Encoding: gzip", "Range: bytes=0-1");
+    assertEquals(206, gzip.status);
+    assertArrayEquals(new byte[] {0x1f, (byte) 0x8b}, gzip.body);
+  }
+
+  @Test
+  public void range_unsatisfiable() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    for (String range : new String[] {"bytes=1000-", "bytes=1000-2000", "bytes=-0"}) {
+      Response response = get("/a.png", "Range: " + range);
+      assertEquals(range, 416, response.status);
+      assertEquals(range, "bytes */" + PNG.length, response.headers.get("content-range"));
+    }
+  }
+
+  @Test
+  public void range_invalid_isIgnored() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    for (String range : new String[] {"bytes=5-3", "bytes=-", "bytes=1-2,4-5", "items=1-2"}) {
+      Response response = get("/a.png", "Range: " + range);
+      assertEquals(range, 200, response.status);
+      assertNull(range, response.headers.get("content-range"));
+      assertArrayEquals(range, PNG, response.body);
+    }
+  }
+
+  @Test
+  public void ifRange() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    String etag = get("/a.png").headers.get("etag");
+
+    Response current = get("/a.png", "If-Range: " + etag, "Range: bytes=0-9");
+    assertEquals(206, current.status);
+    assertArrayEquals(Arrays.copyOf(PNG, 10), current.body);
+
+    Response stale = get("/a.png", "If-Range: \"stale\"", "Range: bytes=0-9");
+    assertEquals(200, stale.status);
+    assertArrayEquals(PNG, stale.body);
+  }
+
+  @Test
+  public void keepAlive() throws IOException {
+    serve(zip("assets", "index.html", "a.png"));
+    try (Socket socket = connect()) {
+      OutputStream out = socket.getOutputStream();
+      // Both requests are sent at once, so the second waits in the buffer of the connection.
+      out.write(
+          ("GET /a.png HTTP/1.1\r\nRange: bytes=0-0\r\n\r\n"
+                  + "GET /a.png HTTP/1.1\r\nConnection: close\r\nRange: bytes=1-1\r\n\r\n")
+              .getBytes(ISO_8859_1));
+      out.flush();
+      InputStream in = socket.getInputStream();
+      Response first = Response.read(in);
+      assertArrayEquals(new byte[] {PNG[0]}, first.body);
+      Response second = Response.read(in);
+      assertArrayEquals(new byte[] {PNG[1]}, second.body);
+      assertEquals("close", second.headers.get("connection"));
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void runtimeException_answersInternalServerError() throws IOException {
+    Path assets = zip("assets", "index.html", "a.png");
+    Path smaller = zip("smaller", "index.html");
+    // The index of the larger zip points past the end of the smaller one for a.png, which the
+    // server only finds out while responding.
+    try (ZipReader zip = ZipReader.open(assets)) {
+      server = new ZipServer(smaller, ZipIndex.build(zip), 0);
+    }
+    start();
+
+    Response error = get("/a.png");
+    assertEquals(500, error.status);
+    assertEquals("close", error.headers.get("connection"));
+    // The server goes on serving other connections.
+    assertArrayEquals(HTML, get("/index.html").body);
+  }
+
+  /** Zips the named files of {@link #directory} into {@code name}.zip and returns its path. */
+  private Path zip(String name, String... files) throws IOException {
+    Webfiles.Builder webfiles = Webfiles.newBuilder();
+    for (String file : files) {
+      webfiles.addSrc(
+          WebfilesSource.newBuilder()
+              .setPath(directory.resolve(file).toString())
+              .setWebpath("/" + file));
+    }
+    Path manifest = directory.resolve(name + ".pb");
+    Files.write(manifest, webfiles.build().toByteArray());
+    Path output = directory.resolve(name + ".zip");
+    Zipper.zip(
+        output,
+        ImmutableList.of(manifest),
+        new CompressionPolicy(true, Deflater.BEST_SPEED, Deflater.BEST_SPEED, 0),
+        1,
+        null,
+        directory.resolve(name + ".idx"),
+        new Metrics());
+    return output;
+  }
+
+  /** Serves {@code zipFile} with the index Zipper wrote next to it, on any free port. */
+  private void serve(Path zipFile) throws IOException {
+    Path indexFile =
+        zipFile.resolveSibling(zipFile.getFileName().toString().replace(".zip", ".idx"));
+    server = new ZipServer(zipFile, ZipServer.openIndex(zipFile, indexFile), 0);
+    start();
+  }
+
+  private void start() {
+    thread =
+        new Thread(
+            () -> {
+              try {
+                server.run();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+    thread.start();
+  }
+
+  private Response get(String webpath, String... headers) throws IOException {
+    StringBuilder request = new StringBuilder("GET ").append(webpath).append(" HTTP/1.1\r\n");
+    for (String header : headers) {
+      request.append(header).append("\r\n");
+    }
+    return send(request.append("\r\n").toString());
+  }
+
+  /** Sends {@code request} on a connection of its own, and reads the response. */
+  private Response send(String request) throws IOException {
+    try (Socket socket = connect()) {
+      socket.getOutputStream().write(request.getBytes(ISO_8859_1));
+      socket.getOutputStream().flush();
+      return Response.read(socket.getInputStream());
+    }
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    // A server that stopped answering fails the test rather than hanging it.
+    socket.setSoTimeout(10_000);
+    return socket;
+  }
+
+  private static byte[] gunzip(byte[] bytes) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  private static final class Response {
+    int status;
+    final Map<String, String> headers = new HashMap<>();
+    byte[] body;
+
+    /** Reads a response from {@code in}, whose body is as long as its Content-Length says. */
+    static Response read(InputStream in) throws IOException {
+      Response response = new Response();
+      String statusLine = readLine(in);
+      response.status = Integer.parseInt(statusLine.split(" ")[1]);
+      for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+        int colon = line.indexOf(':');
+        response.headers.put(
+            Ascii.toLowerCase(line.substring(0, colon)),
+            line.substring(colon + 1).trim());
+      }
+      String length = response.headers.get("content-length");
+      response.body = new byte[length != null ? Integer.parseInt(length) : 0];
+      ByteStreams.readFully(in, response.body);
+      return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      for (int c = in.read(); c != '\n'; c = in.read()) {
+        if (c < 0) {
+          throw new IOException("Connection closed in the middle of a response");
+        }
+        if (c != '\r') {
+          line.append((char) c);
+        }
+      }
+      return line.toString();
+    }
+  }
+}
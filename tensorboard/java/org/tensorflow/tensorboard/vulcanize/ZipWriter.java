@@ -0,0 +1,241 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Verify.verify;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file out of entries that were already compressed.
+ *
+ * <p>{@link java.util.zip.ZipOutputStream} insists on compressing entries itself, one at a time,
+ * which makes it impossible to deflate entries on other threads, or to copy them from another zip
+ * as is, e.g. with {@link ZipReader}. This writer takes the raw deflate stream of an entry along
+ * with its CRC and sizes. Stored files can also be handed over as channels, which the kernel
+ * copies into the zip without their bytes ever reaching the heap.
+ *
+ * <p>Timestamps are fixed so the output only depends on the entries. Names are UTF-8. ZIP64 isn't
+ * supported, so there may be at most 65535 entries of at most 4 GiB, and anything past that throws
+ * {@link com.google.common.base.VerifyException}. Once an entry failed to be written, closing the
+ * writer leaves out the central directory, so what's left can't pass for a complete zip.
+ */
+final class ZipWriter implements Closeable {
+
+  static final int LOCAL_HEADER_SIZE = 30;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final short VERSION = 20;
+  private static final short UTF8_FLAG = 0x0800;
+  // 1980-01-01 00:00:00, the earliest time MS-DOS can represent.
+  private static final short DOS_TIME = 0;
+  private static final short DOS_DATE = (1 << 5) | 1;
+  private static final long MAX_UINT32 = 0xffffffffL;
+  private static final int MAX_ENTRIES = 0xffff;
+
+  private final FileChannel channel;
+  private final OutputStream out;
+  private long position;
+  private boolean failed;
+  private final List<Entry> entries = new ArrayList<>();
+  private final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+
+  ZipWriter(Path output) throws IOException {
+    channel =
+        FileChannel.open(
+            output,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+  }
+
+  /**
+   * Writes an entry.
+   *
+   * @param method {@link ZipEntry#DEFLATED} if {@code data} is a raw deflate stream, or {@link
+   *     ZipEntry#STORED}. Either way, {@code data} is written from its position to its limit.
+   * @param crc CRC-32 of the uncompressed content
+   * @param size size of the uncompressed content
+   * @return offset of the local header of the entry
+   */
+  long write(String name, int method, long crc, long size, ByteBuffer data) throws IOException {
+    int length = data.remaining();
+    checkArgument(method == ZipEntry.DEFLATED || method == ZipEntry.STORED, "method %s", method);
+    checkArgument(method == ZipEntry.DEFLATED || size == length, "Stored sizes differ: %s", name);
+    checkState(!failed, "Can't write %s after an entry failed", name);
+    long offset = position;
+    failed = true;
+    writeLocalHeader(name, method, crc, size, length);
+    if (data.hasArray()) {
+      write(data.array(), data.arrayOffset() + data.position(), length);
+    } else {
+      byte[] chunk = new byte[Math.min(length, BUFFER_SIZE)];
+      for (ByteBuffer input = data.duplicate(); input.hasRemaining(); ) {
+        int n = Math.min(chunk.length, input.remaining());
+        input.get(chunk, 0, n);
+        write(chunk, 0, n);
+      }
+    }
+    failed = false;
+    return offset;
+  }
+
+  /**
+   * Writes the whole content of {@code source} as a stored entry.
+   *
+   * @param crc CRC-32 of the content
+   * @param size size of the content, which {@code source} must still have
+   * @return offset of the local header of the entry
+   */
+  long transfer(String name, long crc, long size, FileChannel source) throws IOException {
+    verify(source.size() == size, "%s changed size while zipping", name);
+    checkState(!failed, "Can't write %s after an entry failed", name);
+    long offset = position;
+    failed = true;
+    writeLocalHeader(name, ZipEntry.STORED, crc, size, size);
+    out.flush();
+    for (long done = 0; done < size; ) {
+      long n = source.transferTo(done, size - done, channel);
+      verify(n > 0, "%s ended before its %s bytes", name, size);
+      done += n;
+    }
+    position += size;
+    failed = false;
+    return offset;
+  }
+
+  /** Returns where the data of entry {@code name} starts, given where its local header is. */
+  static long getDataOffset(long offset, String name) {
+    return offset + LOCAL_HEADER_SIZE + name.getBytes(UTF_8).length;
+  }
+
+  /** Writes the central directory, unless writing an entry failed. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (failed) {
+        return;
+      }
+      long start = position;
+      for (Entry entry : entries) {
+        header.clear();
+        header.putInt(CENTRAL_HEADER_SIGNATURE);
+        header.putShort(VERSION); // made by
+        header.putShort(VERSION); // needed to extract
+        putCommonFields(entry);
+        header.putShort((short) 0); // extra field length
+        header.putShort((short) 0); // comment length
+        header.putShort((short) 0); // disk number
+        header.putShort((short) 0); // internal attributes
+        header.putInt(0); // external attributes
+        header.putInt((int) entry.offset);
+        writeHeader();
+        write(entry.name, 0, entry.name.length);
+      }
+      long size = position - start;
+      checkFits(position, "Central directory ends too far: %s", position);
+      header.clear();
+      header.putInt(END_SIGNATURE);
+      header.putShort((short) 0); // this disk
+      header.putShort((short) 0); // disk with the central directory
+      header.putShort((short) entries.size());
+      header.putShort((short) entries.size());
+      header.putInt((int) size);
+      header.putInt((int) start);
+      header.putShort((short) 0); // comment length
+      writeHeader();
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeLocalHeader(String name, int method, long crc, long size, long compressedSize)
+      throws IOException {
+    checkFits(size, "Entry is too large for a zip without ZIP64: %s", name);
+    checkFits(position, "Zip is too large for ZIP64-less offsets at: %s", name);
+    Entry entry = new Entry(name.getBytes(UTF_8), method, crc, size, compressedSize, position);
+    verify(entries.size() < MAX_ENTRIES, "Too many entries for a zip without ZIP64");
+    entries.add(entry);
+    header.clear();
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort(VERSION);
+    putCommonFields(entry);
+    header.putShort((short) 0); // extra field length
+    writeHeader();
+    write(entry.name, 0, entry.name.length);
+  }
+
+  /** Puts the fields the local and central headers have in common, up to the name length. */
+  private void putCommonFields(Entry entry) {
+    header.putShort(UTF8_FLAG);
+    header.putShort((short) entry.method);
+    header.putShort(DOS_TIME);
+    header.putShort(DOS_DATE);
+    header.putInt((int) entry.crc);
+    header.putInt((int) entry.compressedSize);
+    header.putInt((int) entry.size);
+    header.putShort((short) entry.name.length);
+  }
+
+  private void writeHeader() throws IOException {
+    write(header.array(), 0, header.position());
+  }
+
+  private void write(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+    position += length;
+  }
+
+  private static void checkFits(long value, String message, Object arg) {
+    verify(value <= MAX_UINT32, message, arg);
+  }
+
+  private static final class Entry {
+    final byte[] name;
+    final int method;
+    final long crc;
+    final long size;
+    final long compressedSize;
+    final long offset;
+
+    Entry(byte[] name, int method, long crc, long size, long compressedSize, long offset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.offset = offset;
+    }
+  }
+}
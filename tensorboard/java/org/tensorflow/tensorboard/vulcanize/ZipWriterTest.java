@@ -0,0 +1,235 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.VerifyException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Writes zips with {@link ZipWriter} and reads them back with {@link ZipReader} and the JDK. */
+@RunWith(JUnit4.class)
+public final class ZipWriterTest {
+
+  private static final byte[] TEXT =
+      String.join("", Collections.nCopies(100, "Hello, world! ")).getBytes(UTF_8);
+  private static final String NON_ASCII_NAME = "données/日本語.txt";
+
+  private Path directory;
+  private Path zip;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("ZipWriterTest");
+    zip = directory.resolve("test.zip");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    Files.deleteIfExists(zip);
+    Files.deleteIfExists(directory.resolve("transferred"));
+    Files.delete(directory);
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    Path transferred = Files.write(directory.resolve("transferred"), TEXT);
+    long[] offsets = new long[6];
+    try (ZipWriter writer = new ZipWriter(zip);
+        FileChannel source = FileChannel.open(transferred)) {
+      offsets[0] = writer.write("stored.txt", ZipEntry.STORED, crc(TEXT), TEXT.length, wrap(TEXT));
+      offsets[1] =
+          writer.write("deflated.txt", ZipEntry.DEFLATED, crc(TEXT), TEXT.length, deflate(TEXT));
+      offsets[2] = writer.write("empty", ZipEntry.STORED, crc(new byte[0]), 0, wrap(new byte[0]));
+      offsets[3] =
+          writer.write(
+              "empty.deflated", ZipEntry.DEFLATED, crc(new byte[0]), 0, deflate(new byte[0]));
+      offsets[4] =
+          writer.write(NON_ASCII_NAME, ZipEntry.DEFLATED, crc(TEXT), TEXT.length, deflate(TEXT));
+      offsets[5] = writer.transfer("transferred.txt", crc(TEXT), TEXT.length, source);
+    }
+
+    try (ZipFile jdk = new ZipFile(zip.toFile(), UTF_8)) {
+      assertEquals(6, jdk.size());
+      assertJdkEntry(jdk, "stored.txt", ZipEntry.STORED, TEXT);
+      assertJdkEntry(jdk, "deflated.txt", ZipEntry.DEFLATED, TEXT);
+      assertJdkEntry(jdk, "empty", ZipEntry.STORED, new byte[0]);
+      assertJdkEntry(jdk, "empty.deflated", ZipEntry.DEFLATED, new byte[0]);
+      assertJdkEntry(jdk, NON_ASCII_NAME, ZipEntry.DEFLATED, TEXT);
+      assertJdkEntry(jdk, "transferred.txt", ZipEntry.STORED, TEXT);
+    }
+
+    try (ZipReader reader = ZipReader.open(zip)) {
+      assertEquals(
+          ImmutableSet.of(
+              "stored.txt",
+              "deflated.txt",
+              "empty",
+              "empty.deflated",
+              NON_ASCII_NAME,
+              "transferred.txt"),
+          reader.getNames());
+      assertReaderEntry(reader, "stored.txt", offsets[0], ZipEntry.STORED, TEXT);
+      assertReaderEntry(reader, "deflated.txt", offsets[1], ZipEntry.DEFLATED, TEXT);
+      assertReaderEntry(reader, "empty", offsets[2], ZipEntry.STORED, new byte[0]);
+      assertReaderEntry(reader, "empty.deflated", offsets[3], ZipEntry.DEFLATED, new byte[0]);
+      assertReaderEntry(reader, NON_ASCII_NAME, offsets[4], ZipEntry.DEFLATED, TEXT);
+      assertReaderEntry(reader, "transferred.txt", offsets[5], ZipEntry.STORED, TEXT);
+      ZipReader.Entry deflated = reader.getEntry("deflated.txt");
+      assertEquals(deflate(TEXT), reader.getRawData(deflated));
+      assertNull(reader.getEntry("missing"));
+    }
+  }
+
+  @Test
+  public void maxEntries_fit() throws IOException {
+    try (ZipWriter writer = new ZipWriter(zip)) {
+      for (int i = 0; i < 0xffff; i++) {
+        writer.write(Integer.toString(i), ZipEntry.STORED, 0, 0, wrap(new byte[0]));
+      }
+    }
+    try (ZipFile jdk = new ZipFile(zip.toFile())) {
+      assertEquals(0xffff, jdk.size());
+    }
+    try (ZipReader reader = ZipReader.open(zip)) {
+      assertEquals(0xffff, reader.getNames().size());
+    }
+  }
+
+  @Test
+  public void tooManyEntries_failsWithoutWritingZip() throws IOException {
+    try (ZipWriter writer = new ZipWriter(zip)) {
+      for (int i = 0; i < 0xffff; i++) {
+        writer.write(Integer.toString(i), ZipEntry.STORED, 0, 0, wrap(new byte[0]));
+      }
+      try {
+        writer.write("one too many", ZipEntry.STORED, 0, 0, wrap(new byte[0]));
+        fail("Wrote more entries than a zip without ZIP64 can count");
+      } catch (VerifyException e) {
+        // Expected.
+      }
+      try {
+        writer.write("after", ZipEntry.STORED, 0, 0, wrap(new byte[0]));
+        fail("Wrote an entry after one failed");
+      } catch (IllegalStateException e) {
+        // Expected.
+      }
+    }
+    assertNotZip();
+  }
+
+  @Test
+  public void entryOver4GiB_failsWithoutWritingZip() throws IOException {
+    try (ZipWriter writer = new ZipWriter(zip)) {
+      writer.write("small", ZipEntry.DEFLATED, crc(TEXT), TEXT.length, deflate(TEXT));
+      try {
+        // The size is checked before anything is written, so the data needn't be that large.
+        writer.write("large", ZipEntry.DEFLATED, 0, 1L << 32, deflate(TEXT));
+        fail("Wrote an entry larger than a zip without ZIP64 can describe");
+      } catch (VerifyException e) {
+        // Expected.
+      }
+    }
+    assertNotZip();
+  }
+
+  private void assertNotZip() throws IOException {
+    try {
+      new ZipFile(zip.toFile()).close();
+      fail("A zip was written after an entry failed");
+    } catch (ZipException e) {
+      // Expected.
+    }
+    try {
+      ZipReader.open(zip).close();
+      fail("A zip was written after an entry failed");
+    } catch (ZipException e) {
+      // Expected.
+    }
+  }
+
+  private static void assertJdkEntry(ZipFile jdk, String name, int method, byte[] content)
+      throws IOException {
+    ZipEntry entry = jdk.getEntry(name);
+    assertEquals(name, method, entry.getMethod());
+    assertEquals(name, content.length, entry.getSize());
+    assertEquals(name, crc(content), entry.getCrc());
+    try (InputStream in = jdk.getInputStream(entry)) {
+      assertArrayEquals(name, content, ByteStreams.toByteArray(in));
+    }
+  }
+
+  private static void assertReaderEntry(
+      ZipReader reader, String name, long offset, int method, byte[] content) throws IOException {
+    ZipReader.Entry entry = reader.getEntry(name);
+    assertEquals(name, method, entry.method);
+    assertEquals(name, content.length, entry.size);
+    assertEquals(name, crc(content), entry.crc);
+    assertEquals(name, offset, entry.localHeaderOffset);
+    assertEquals(name, ZipWriter.getDataOffset(offset, name), reader.getDataOffset(entry));
+    ByteBuffer data = reader.getRawData(entry);
+    assertEquals(name, entry.compressedSize, data.remaining());
+    assertArrayEquals(name, content, ZipReader.decompress(entry.method, data, entry.size));
+  }
+
+  private static ByteBuffer wrap(byte[] bytes) {
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static long crc(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  private static ByteBuffer deflate(byte[] bytes) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return ByteBuffer.wrap(out.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+}
@@ -14,22 +14,34 @@
 
 package org.tensorflow.tensorboard.vulcanize;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 
-import com.google.protobuf.TextFormat;
-import io.bazel.rules.closure.webfiles.BuildInfo.WebfileInfo;
-import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
 import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
-import io.bazel.rules.closure.webfiles.WebfilesWriter;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 
 /**
  * Simple one-off solution for TensorBoard zipping of web_library rules.
@@ -37,37 +49,387 @@ import java.util.zip.Deflater;
  * <p>This is intended to collect static assets for production web server deployment. The paths of
  * files inside the zip will be web paths, with the prefix slash removed. These files will be
  * topologically ordered, i.e. web files higher up in the build tree come first.
+ *
+ * <p>Images, fonts and other compressed formats are stored as is, see {@link CompressionPolicy}.
+ * {@code --text_level=N} sets the Deflater level of HTML, JS, CSS and the like, and {@code
+ * --min_savings=F} stores other entries when deflate saves less than that fraction of their size.
+ *
+ * <p>With {@code --previous_zip=PATH} and {@code --previous_index=PATH}, unchanged entries of an
+ * earlier zip are copied rather than deflated again. Whether they're unchanged is decided by the
+ * SHA-256 in the index written along with that zip, since a CRC-32 is too easy to collide. They
+ * may not be the files being written, which would be truncated while they're read. Bazel deletes
+ * the outputs of an action before running it, so both have to be kept somewhere else by whoever
+ * runs this, which is why tensorboard_zip_file doesn't pass these flags.
+ *
+ * <p>With {@code --index_file=PATH}, a {@link ZipIndex} of the entries is written as well, so that
+ * a server can look them up without reading the zip's central directory.
  */
 public final class Zipper {
 
+  private static final int ENTRIES_IN_FLIGHT_PER_THREAD = 4;
+  private static final String PREVIOUS_ZIP_FLAG = "--previous_zip=";
+  private static final String PREVIOUS_INDEX_FLAG = "--previous_index=";
+  private static final String TEXT_LEVEL_FLAG = "--text_level=";
+  private static final String MIN_SAVINGS_FLAG = "--min_savings=";
+  private static final String INDEX_FILE_FLAG = "--index_file=";
+
   public static void main(String[] args) throws IOException {
-    Set<String> alreadyZipped = new HashSet<>();
-    try (WebfilesWriter writer =
-        new WebfilesWriter(
-            Files.newByteChannel(
-                Paths.get(args[0]),
-                StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING),
-            Deflater.BEST_SPEED)) {
-      for (int i = 1; i < args.length; i++) {
-        Webfiles manifest = loadWebfilesPbtxt(Paths.get(args[i]));
-        for (WebfilesSource src : manifest.getSrcList()) {
-          if (!alreadyZipped.add(src.getWebpath())) {
-            continue;
-          }
-          try (InputStream input = Files.newInputStream(Paths.get(src.getPath()))) {
-            writer.writeWebfile(
-                WebfileInfo.newBuilder().setWebpath(src.getWebpath()).build(), input);
-          }
+    // Optional flags come before the positional arguments.
+    String metricsFile = null;
+    boolean parallel = false;
+    Path previousZip = null;
+    Path previousIndex = null;
+    int textLevel = Deflater.BEST_SPEED;
+    double minSavings = 0;
+    Path indexFile = null;
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      if (args[first].startsWith(Metrics.FLAG)) {
+        metricsFile = args[first].substring(Metrics.FLAG.length());
+      } else if (args[first].equals("--parallel")) {
+        parallel = true;
+      } else if (args[first].startsWith(PREVIOUS_ZIP_FLAG)) {
+        previousZip = Paths.get(args[first].substring(PREVIOUS_ZIP_FLAG.length()));
+      } else if (args[first].startsWith(PREVIOUS_INDEX_FLAG)) {
+        previousIndex = Paths.get(args[first].substring(PREVIOUS_INDEX_FLAG.length()));
+      } else if (args[first].startsWith(TEXT_LEVEL_FLAG)) {
+        textLevel = Integer.parseInt(args[first].substring(TEXT_LEVEL_FLAG.length()));
+      } else if (args[first].startsWith(MIN_SAVINGS_FLAG)) {
+        minSavings = Double.parseDouble(args[first].substring(MIN_SAVINGS_FLAG.length()));
+      } else if (args[first].startsWith(INDEX_FILE_FLAG)) {
+        indexFile = Paths.get(args[first].substring(INDEX_FILE_FLAG.length()));
+      } else {
+        throw new IllegalArgumentException("Unknown flag: " + args[first]);
+      }
+    }
+    Metrics metrics = new Metrics();
+    Path output = Paths.get(args[first]);
+    List<Path> manifests = new ArrayList<>();
+    for (int i = first + 1; i < args.length; i++) {
+      manifests.add(Paths.get(args[i]));
+    }
+    for (Path previous : Arrays.asList(previousZip, previousIndex)) {
+      for (Path written : Arrays.asList(output, indexFile)) {
+        checkArgument(!isSameFile(previous, written), "%s is also written to", previous);
+      }
+    }
+    long start = System.nanoTime();
+    try (Previous previous =
+        previousZip != null ? Previous.open(previousZip, previousIndex) : null) {
+      zip(
+          output,
+          manifests,
+          new CompressionPolicy(true, textLevel, Deflater.BEST_SPEED, minSavings),
+          parallel ? Runtime.getRuntime().availableProcessors() : 1,
+          previous,
+          indexFile,
+          metrics);
+    }
+    if (metricsFile != null) {
+      long elapsedNanos = System.nanoTime() - start;
+      metrics.set("compressed_bytes", Files.size(output));
+      metrics.set(
+          "raw_bytes_per_second",
+          metrics.get("raw_bytes") * 1_000_000_000L / Math.max(elapsedNanos, 1));
+      metrics.write(metricsFile);
+    }
+  }
+
+  private static boolean isSameFile(Path a, Path b) throws IOException {
+    return a != null && b != null && Files.exists(a) && Files.exists(b) && Files.isSameFile(a, b);
+  }
+
+  /**
+   * Zips the webfiles listed in {@code manifests} into {@code output}, where the first manifest
+   * listing a webpath wins.
+   *
+   * <p>Entries are read and compressed by {@code threads} workers, each with its own Deflater.
+   * They're still written in manifest order, as soon as all the entries before them are done.
+   *
+   * <p>If {@code previous} is given, entries it has with the same name, size and SHA-256 are
+   * copied from it as is instead of being deflated again, which is most of them after a small
+   * change.
+   *
+   * @param policy decides which entries get deflated, and how hard
+   * @param previous zip built from earlier versions of the same webfiles, or null
+   * @param indexFile where to write a {@link ZipIndex} of the entries, or null
+   * @param metrics receives the number of entries of each kind and uncompressed bytes
+   */
+  @SuppressWarnings("try")
+  static void zip(
+      Path output,
+      List<Path> manifests,
+      CompressionPolicy policy,
+      int threads,
+      Previous previous,
+      Path indexFile,
+      Metrics metrics)
+      throws IOException {
+    Collection<WebfilesSource> sources;
+    try (Metrics.Timer timer = metrics.time("load_manifests")) {
+      sources = WebfilesManifests.merge(WebfilesManifests.loadAll(manifests)).values();
+    }
+    // A single worker might as well be the calling thread.
+    ExecutorService pool =
+        threads > 1 ? Executors.newFixedThreadPool(threads) : newDirectExecutorService();
+    Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    ThreadLocal<Deflater> deflater =
+        ThreadLocal.withInitial(
+            () -> {
+              Deflater result = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+              deflaters.add(result);
+              return result;
+            });
+    // Bounds how many deflated entries may be waiting for their turn in memory.
+    int window = threads * ENTRIES_IN_FLIGHT_PER_THREAD;
+    Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+    ZipIndex.Writer index = indexFile != null ? new ZipIndex.Writer() : null;
+    boolean hash = index != null || previous != null;
+    try (Metrics.Timer timer = metrics.time("zip");
+        ZipWriter writer = new ZipWriter(output)) {
+      for (WebfilesSource src : sources) {
+        pending.add(pool.submit(() -> compress(src, policy, previous, deflater.get(), hash)));
+        if (pending.size() >= window) {
+          Futures.getChecked(pending.removeFirst(), IOException.class)
+              .writeTo(writer, index, metrics);
         }
       }
+      while (!pending.isEmpty()) {
+        Futures.getChecked(pending.removeFirst(), IOException.class)
+            .writeTo(writer, index, metrics);
+      }
+    } finally {
+      pool.shutdownNow();
+      try {
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (Deflater used : deflaters) {
+        used.end();
+      }
+    }
+    if (index != null) {
+      try (Metrics.Timer timer = metrics.time("index")) {
+        index.write(indexFile);
+      }
+    }
+    metrics.set("entries", sources.size());
+  }
+
+  private static CompressedEntry compress(
+      WebfilesSource src,
+      CompressionPolicy policy,
+      Previous previous,
+      Deflater deflater,
+      boolean hash)
+      throws IOException {
+    String name = src.getWebpath().substring(1);
+    Path path = Paths.get(src.getPath());
+    if (policy.shouldStore(name)) {
+      // Only the CRC is needed now, so the bytes stay in the page cache until they're transferred.
+      try (FileChannel channel = FileChannel.open(path)) {
+        long size = channel.size();
+        CRC32 crc = new CRC32();
+        ByteBuffer content =
+            size > 0 ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : ByteBuffer.allocate(0);
+        crc.update(content.duplicate());
+        return new CompressedEntry(
+            name,
+            ZipEntry.STORED,
+            crc.getValue(),
+            size,
+            null,
+            path,
+            hash ? Hashing.sha256().hashBytes(content).asBytes() : null,
+            "entries_stored");
+      }
+    }
+    byte[] content = Files.readAllBytes(path);
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length);
+    byte[] sha256 = hash ? Hashing.sha256().hashBytes(content).asBytes() : null;
+    if (previous != null) {
+      ZipReader.Entry entry = previous.find(src.getWebpath(), content.length, sha256);
+      if (entry != null) {
+        return new CompressedEntry(
+            name,
+            entry.method,
+            entry.crc,
+            entry.size,
+            previous.zip.getRawData(entry),
+            null,
+            sha256,
+            "entries_reused");
+      }
+    }
+    deflater.setLevel(policy.getLevel(name));
+    boolean sample = policy.shouldSample(name);
+    // Deflating a sample first saves deflating all of a large file that doesn't compress.
+    if (sample
+        && content.length > CompressionPolicy.SAMPLE_BYTES
+        && !policy.isWorthDeflating(
+            CompressionPolicy.SAMPLE_BYTES,
+            deflate(content, CompressionPolicy.SAMPLE_BYTES, deflater).remaining())) {
+      return store(name, crc.getValue(), content, sha256);
+    }
+    ByteBuffer deflated = deflate(content, content.length, deflater);
+    if (sample && !policy.isWorthDeflating(content.length, deflated.remaining())) {
+      return store(name, crc.getValue(), content, sha256);
+    }
+    return new CompressedEntry(
+        name,
+        ZipEntry.DEFLATED,
+        crc.getValue(),
+        content.length,
+        deflated,
+        null,
+        sha256,
+        "entries_deflated");
+  }
+
+  private static CompressedEntry store(String name, long crc, byte[] content, byte[] sha256) {
+    return new CompressedEntry(
+        name,
+        ZipEntry.STORED,
+        crc,
+        content.length,
+        ByteBuffer.wrap(content),
+        null,
+        sha256,
+        "entries_stored");
+  }
+
+  /** Deflates the first {@code length} bytes of {@code content}. */
+  private static ByteBuffer deflate(byte[] content, int length, Deflater deflater) {
+    deflater.reset();
+    deflater.setInput(content, 0, length);
+    deflater.finish();
+    // Deflate can make incompressible data slightly larger, hence the headroom.
+    byte[] deflated = new byte[length + length / 64 + 64];
+    int deflatedLength = 0;
+    while (!deflater.finished()) {
+      if (deflatedLength == deflated.length) {
+        deflated = Arrays.copyOf(deflated, deflated.length * 2);
+      }
+      deflatedLength +=
+          deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+    }
+    return ByteBuffer.wrap(deflated, 0, deflatedLength);
+  }
+
+  /** An earlier zip, along with its index, which has the SHA-256 of every entry. */
+  private static final class Previous implements Closeable {
+    final ZipReader zip;
+    final ZipIndex index;
+
+    private Previous(ZipReader zip, ZipIndex index) {
+      this.zip = zip;
+      this.index = index;
+    }
+
+    /** Returns the zip at {@code zipPath} and its index, or null if there's no usable pair. */
+    static Previous open(Path zipPath, Path indexPath) throws IOException {
+      if (!Files.exists(zipPath)) {
+        return null;
+      }
+      if (indexPath == null || !Files.exists(indexPath)) {
+        // A CRC-32 can collide, so without the SHA-256 of an entry it can't be trusted to match.
+        System.err.printf("WARNING: Not reusing entries of %s without its index%n", zipPath);
+        return null;
+      }
+      try {
+        ZipIndex index = ZipIndex.open(indexPath);
+        return new Previous(ZipReader.open(zipPath), index);
+      } catch (IOException e) {
+        System.err.printf("WARNING: Not reusing entries of %s: %s%n", zipPath, e);
+        return null;
+      }
+    }
+
+    /**
+     * Returns the entry of {@code webpath} if its content has the same size and SHA-256, and the
+     * index agrees with the zip about it, or null.
+     */
+    ZipReader.Entry find(String webpath, long size, byte[] sha256) {
+      ZipReader.Entry entry = zip.getEntry(webpath.substring(1));
+      int record = index.find(webpath);
+      if (entry == null
+          || record < 0
+          || entry.size != size
+          || index.getSize(record) != size
+          || index.getCrc(record) != entry.crc
+          || !index.getSha256(record).equals(ByteBuffer.wrap(sha256))) {
+        return null;
+      }
+      return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+      zip.close();
     }
   }
 
-  private static Webfiles loadWebfilesPbtxt(Path path) throws IOException {
-    Webfiles.Builder build = Webfiles.newBuilder();
-    TextFormat.getParser().merge(new String(Files.readAllBytes(path), UTF_8), build);
-    return build.build();
+  private static final class CompressedEntry {
+    final String name;
+    final int method;
+    final long crc;
+    final long size;
+    final ByteBuffer data;
+    final Path source;
+    final byte[] sha256;
+    final String counter;
+
+    /**
+     * @param data what goes into the zip, or null to transfer all of {@code source}
+     * @param sha256 hash of the uncompressed content if there's an index, or null
+     * @param counter metric counting the entries that were handled this way
+     */
+    CompressedEntry(
+        String name,
+        int method,
+        long crc,
+        long size,
+        ByteBuffer data,
+        Path source,
+        byte[] sha256,
+        String counter) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.data = data;
+      this.source = source;
+      this.sha256 = sha256;
+      this.counter = counter;
+    }
+
+    void writeTo(ZipWriter writer, ZipIndex.Writer index, Metrics metrics) throws IOException {
+      long offset;
+      long compressedSize;
+      if (data != null) {
+        compressedSize = data.remaining();
+        offset = writer.write(name, method, crc, size, data);
+      } else {
+        compressedSize = size;
+        try (FileChannel channel = FileChannel.open(source)) {
+          offset = writer.transfer(name, crc, size, channel);
+        }
+      }
+      if (index != null) {
+        index.add(
+            "/" + name,
+            method,
+            crc,
+            size,
+            compressedSize,
+            offset,
+            ZipWriter.getDataOffset(offset, name),
+            sha256);
+      }
+      metrics.count("raw_bytes", size);
+      metrics.count(counter, 1);
+    }
   }
 }
@@ -0,0 +1,200 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.protobuf.TextFormat;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how fast Zipper is and how small its output gets at each compression level.
+ *
+ * <p>This is a standalone program rather than a JMH benchmark, because the compression ratio is as
+ * important as the time and JMH only reports the latter. Each mix of webfiles is generated once,
+ * then zipped at every level, a few times over after a warm-up run, and the median run is
+ * reported. Text is made of random tokens from a JavaScript-like vocabulary, so it compresses
+ * about as well as real code rather than absurdly well. With {@code --threads} greater than one,
+ * entries are deflated in parallel. {@code --policy=uniform} deflates everything, including the
+ * images and fonts that are otherwise stored. Run with e.g.
+ *
+ * <pre>
+ * bazel run //tensorboard/java/org/tensorflow/tensorboard/vulcanize:ZipperBenchmark -- \
+ *     --levels=1,6,9 --mixes=small,mixed --runs=5 --threads=8
+ * </pre>
+ */
+public final class ZipperBenchmark {
+
+  /** Kinds of webfiles found in the zips we ship. */
+  enum Mix {
+    /** Thousands of small JS and HTML files, like the sources of Polymer components. */
+    SMALL,
+    /** A few large JavaScript bundles, like vulcanized binaries. */
+    BUNDLES,
+    /** Already compressed binaries: images and fonts. */
+    BINARIES,
+    /** All of the above. */
+    MIXED,
+  }
+
+  private static final ImmutableList<String> TOKENS =
+      ImmutableList.of(
+          "function", "return", "var", "const", "let", "this", "if", "else", "for", "new",
+          "null", "true", "false", "Polymer", "properties", "value", "type", "observer", "_data",
+          "render", "callback", "element", "attached", "detached", "listener", "tf", "vz",
+          "backend", "run", "tag", "scalar", "chart", "=", "==", "===", "(", ")", "{", "}", ";",
+          ",", ".", "+", "0", "1", "'", "\n", "  ");
+
+  private static final int SMALL_FILES = 3000;
+
+  private ZipperBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    List<Integer> levels = Arrays.asList(0, 1, 3, 6, 9);
+    List<Mix> mixes = Arrays.asList(Mix.values());
+    int runs = 3;
+    int threads = 1;
+    boolean typed = true;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--levels=")) {
+        levels = new ArrayList<>();
+        for (String level : Splitter.on(',').split(value)) {
+          levels.add(Integer.parseInt(level));
+        }
+      } else if (arg.startsWith("--mixes=")) {
+        mixes = new ArrayList<>();
+        for (String mix : Splitter.on(',').split(value)) {
+          mixes.add(Mix.valueOf(mix.toUpperCase()));
+        }
+      } else if (arg.startsWith("--runs=")) {
+        runs = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--policy=")) {
+        checkArgument(value.equals("typed") || value.equals("uniform"), "Bad policy: %s", value);
+        typed = value.equals("typed");
+      } else {
+        throw new IllegalArgumentException("Unknown flag: " + arg);
+      }
+    }
+    System.out.printf(
+        "%-9s %5s %8s %10s %10s %12s %7s%n",
+        "mix", "level", "entries", "raw MB", "MB/s", "entries/s", "ratio");
+    for (Mix mix : mixes) {
+      Path directory = Files.createTempDirectory("zipper_benchmark");
+      try {
+        Path manifest = generate(directory, mix);
+        Path output = directory.resolve("out.zip");
+        for (int level : levels) {
+          CompressionPolicy policy =
+              typed
+                  ? new CompressionPolicy(true, level, level, 0)
+                  : CompressionPolicy.uniform(level);
+          long[] nanos = new long[runs];
+          Metrics metrics = null;
+          for (int run = -1; run < runs; run++) {
+            metrics = new Metrics();
+            long start = System.nanoTime();
+            Zipper.zip(
+                output, ImmutableList.of(manifest), policy, threads, null, null, metrics);
+            if (run >= 0) {
+              nanos[run] = System.nanoTime() - start;
+            }
+          }
+          Arrays.sort(nanos);
+          double seconds = nanos[runs / 2] / 1e9;
+          long entries = metrics.get("entries");
+          long rawBytes = metrics.get("raw_bytes");
+          System.out.printf(
+              "%-9s %5d %8d %10.1f %10.1f %12.0f %7.3f%n",
+              mix.name().toLowerCase(),
+              level,
+              entries,
+              rawBytes / 1e6,
+              rawBytes / 1e6 / seconds,
+              entries / seconds,
+              (double) Files.size(output) / rawBytes);
+        }
+      } finally {
+        MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+      }
+    }
+  }
+
+  /** Writes the webfiles of {@code mix} and returns the path of their manifest. */
+  private static Path generate(Path directory, Mix mix) throws IOException {
+    Random random = new Random(mix.ordinal());
+    Webfiles.Builder manifest = Webfiles.newBuilder();
+    if (mix == Mix.SMALL || mix == Mix.MIXED) {
+      for (int i = 0; i < SMALL_FILES; i++) {
+        String name = String.format("components/file%d.%s", i, i % 2 == 0 ? "js" : "html");
+        write(directory, manifest, name, text(random, 512 + random.nextInt(4096)));
+      }
+    }
+    if (mix == Mix.BUNDLES || mix == Mix.MIXED) {
+      for (int i = 0; i < 4; i++) {
+        String name = String.format("bundles/bundle%d.js", i);
+        write(directory, manifest, name, text(random, (2 + 2 * i) * 1024 * 1024));
+      }
+    }
+    if (mix == Mix.BINARIES || mix == Mix.MIXED) {
+      for (int i = 0; i < 200; i++) {
+        String name = String.format("assets/asset%d.%s", i, i % 2 == 0 ? "png" : "woff2");
+        // Compressed data looks random, which is the worst case for deflate.
+        byte[] bytes = new byte[4096 + random.nextInt(64 * 1024)];
+        random.nextBytes(bytes);
+        write(directory, manifest, name, bytes);
+      }
+    }
+    Path manifestPath = directory.resolve("manifest.pbtxt");
+    Files.write(manifestPath, TextFormat.printToString(manifest.build()).getBytes(UTF_8));
+    return manifestPath;
+  }
+
+  private static byte[] text(Random random, int bytes) {
+    StringBuilder text = new StringBuilder(bytes + 16);
+    while (text.length() < bytes) {
+      text.append(TOKENS.get(random.nextInt(TOKENS.size())));
+      if (random.nextInt(4) == 0) {
+        // Identifiers, which are what keeps real code from compressing too well.
+        text.append(Integer.toString(random.nextInt(1 << 16), 36));
+      }
+      text.append(' ');
+    }
+    return text.toString().getBytes(UTF_8);
+  }
+
+  private static void write(Path directory, Webfiles.Builder manifest, String name, byte[] bytes)
+      throws IOException {
+    Path path = directory.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, bytes);
+    manifest.addSrc(WebfilesSource.newBuilder().setPath(path.toString()).setWebpath("/" + name));
+  }
+}
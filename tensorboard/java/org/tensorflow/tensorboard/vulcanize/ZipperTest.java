@@ -0,0 +1,192 @@
+// Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.tensorflow.tensorboard.vulcanize;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import io.bazel.rules.closure.webfiles.BuildInfo.Webfiles;
+import io.bazel.rules.closure.webfiles.BuildInfo.WebfilesSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Runs {@link Zipper} twice, the second time reusing the entries of the first zip. */
+@RunWith(JUnit4.class)
+public final class ZipperTest {
+
+  private static final String STYLE = ".a { color: red; }\n";
+  private static final String SCRIPT = "var a = 'first';\n";
+  private static final String CHANGED_SCRIPT = "var a = 'later';\n";
+
+  private Path directory;
+  private Path manifest;
+
+  @Before
+  public void createWebfiles() throws IOException {
+    directory = Files.createTempDirectory("ZipperTest");
+    Webfiles.Builder webfiles = Webfiles.newBuilder();
+    for (String name : new String[] {"a.js", "b.css"}) {
+      webfiles.addSrc(
+          WebfilesSource.newBuilder()
+              .setPath(directory.resolve(name).toString())
+              .setWebpath("/" + name));
+    }
+    manifest = directory.resolve("manifest.pb");
+    Files.write(manifest, webfiles.build().toByteArray());
+    write("b.css", STYLE);
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void reusesUnchangedEntries() throws IOException {
+    write("a.js", SCRIPT);
+    Map<String, Long> first = zip("1", null);
+    assertEquals(2L, get(first, "entries_deflated"));
+    assertEquals(0L, get(first, "entries_reused"));
+
+    Map<String, Long> second = zip("2", "1");
+    assertEquals(0L, get(second, "entries_deflated"));
+    assertEquals(2L, get(second, "entries_reused"));
+    assertEquals(ImmutableMap.of("a.js", SCRIPT, "b.css", STYLE), unzip("2"));
+  }
+
+  @Test
+  public void deflatesChangedEntries() throws IOException {
+    write("a.js", SCRIPT);
+    zip("1", null);
+    write("a.js", CHANGED_SCRIPT);
+
+    Map<String, Long> second = zip("2", "1");
+    assertEquals(1L, get(second, "entries_deflated"));
+    assertEquals(1L, get(second, "entries_reused"));
+    assertEquals(ImmutableMap.of("a.js", CHANGED_SCRIPT, "b.css", STYLE), unzip("2"));
+  }
+
+  @Test
+  public void staleIndex_isNotTrusted() throws IOException {
+    write("a.js", SCRIPT);
+    zip("1", null);
+    write("a.js", CHANGED_SCRIPT);
+    zip("2", "1");
+    write("a.js", SCRIPT);
+
+    // The index of the first zip vouches for the content a.js has now, but the second zip has the
+    // changed content. Only b.css is the same in both.
+    Map<String, Long> third = zip("3", "2", directory.resolve("1.idx"));
+    assertEquals(1L, get(third, "entries_deflated"));
+    assertEquals(1L, get(third, "entries_reused"));
+    assertEquals(ImmutableMap.of("a.js", SCRIPT, "b.css", STYLE), unzip("3"));
+  }
+
+  @Test
+  public void corruptIndex_reusesNothing() throws IOException {
+    write("a.js", SCRIPT);
+    zip("1", null);
+    Path index = directory.resolve("1.idx");
+    Files.write(index, new byte[] {1, 2, 3});
+
+    Map<String, Long> second = zip("2", "1", index);
+    assertEquals(2L, get(second, "entries_deflated"));
+    assertEquals(0L, get(second, "entries_reused"));
+    assertEquals(ImmutableMap.of("a.js", SCRIPT, "b.css", STYLE), unzip("2"));
+  }
+
+  @Test
+  public void previousZipIsOutput_fails() throws IOException {
+    write("a.js", SCRIPT);
+    zip("1", null);
+    try {
+      zip("1", "1");
+      fail("Read the previous zip while writing it");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertEquals(ImmutableMap.of("a.js", SCRIPT, "b.css", STYLE), unzip("1"));
+  }
+
+  private void write(String name, String content) throws IOException {
+    Files.write(directory.resolve(name), content.getBytes(UTF_8));
+  }
+
+  /** Writes {@code name}.zip and {@code name}.idx, reusing {@code previous}.zip if not null. */
+  private Map<String, Long> zip(String name, String previous) throws IOException {
+    return zip(name, previous, previous != null ? directory.resolve(previous + ".idx") : null);
+  }
+
+  private Map<String, Long> zip(String name, String previous, Path previousIndex)
+      throws IOException {
+    Path metrics = directory.resolve(name + ".json");
+    List<String> args = new ArrayList<>();
+    args.add(Metrics.FLAG + metrics);
+    args.add("--index_file=" + directory.resolve(name + ".idx"));
+    if (previous != null) {
+      args.add("--previous_zip=" + directory.resolve(previous + ".zip"));
+      args.add("--previous_index=" + previousIndex);
+    }
+    args.add(directory.resolve(name + ".zip").toString());
+    args.add(manifest.toString());
+    Zipper.main(args.toArray(new String[0]));
+    Map<String, Long> counters = new LinkedHashMap<>();
+    Matcher field =
+        Pattern.compile("\"(\\w+)\": (\\d+)")
+            .matcher(new String(Files.readAllBytes(metrics), UTF_8));
+    while (field.find()) {
+      counters.put(field.group(1), Long.parseLong(field.group(2)));
+    }
+    return counters;
+  }
+
+  private static long get(Map<String, Long> metrics, String counter) {
+    return metrics.getOrDefault(counter, 0L);
+  }
+
+  private Map<String, String> unzip(String name) throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    try (ZipFile zip = new ZipFile(directory.resolve(name + ".zip").toFile())) {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        try (InputStream in = zip.getInputStream(entry)) {
+          entries.put(entry.getName(), new String(ByteStreams.toByteArray(in), UTF_8));
+        }
+      }
+    }
+    return entries;
+  }
+}
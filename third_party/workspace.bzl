@@ -114,3 +114,84 @@ def tensorboard_workspace():
       ],
       licenses = ["notice"],  # Apache 2.0
   )
+
+  # Only used by the benchmarks in //tensorboard/java/org/tensorflow/tensorboard/vulcanize.
+  java_import_external(
+      name = "net_sf_jopt_simple",
+      jar_sha256 = "3fcfbe3203c2ea521bf7640484fd35d6303186ea2e08e72f032d640ca067ffda",
+      jar_urls = [
+          "http://mirror.tensorflow.org/repo1.maven.org/maven2/net/sf/jopt-simple/jopt-simple/4.6/jopt-simple-4.6.jar",
+          "https://repo1.maven.org/maven2/net/sf/jopt-simple/jopt-simple/4.6/jopt-simple-4.6.jar",
+      ],
+      licenses = ["notice"],  # MIT
+      testonly_ = True,
+  )
+
+  java_import_external(
+      name = "junit",
+      jar_sha256 = "59721f0805e223d84b90677887d9ff567dc534d7c502ca903c0c2b17f05c116a",
+      jar_urls = [
+          "http://mirror.tensorflow.org/repo1.maven.org/maven2/junit/junit/4.12/junit-4.12.jar",
+          "https://repo1.maven.org/maven2/junit/junit/4.12/junit-4.12.jar",
+      ],
+      licenses = ["reciprocal"],  # Eclipse Public License 1.0
+      testonly_ = True,
+      deps = ["@org_hamcrest_core"],
+  )
+
+  java_import_external(
+      name = "org_hamcrest_core",
+      jar_sha256 = "66fdef91e9739348df7a096aa384a5685f4e875584cce89386a7a47251c4d8e9",
+      jar_urls = [
+          "http://mirror.tensorflow.org/repo1.maven.org/maven2/org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar",
+          "https://repo1.maven.org/maven2/org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar",
+      ],
+      licenses = ["notice"],  # New BSD License
+      testonly_ = True,
+  )
+
+  java_import_external(
+      name = "org_apache_commons_math3",
+      jar_sha256 = "6268a9a0ea3e769fc493a21446664c0ef668e48c93d126791f6f3f757978fee2",
+      jar_urls = [
+          "http://mirror.tensorflow.org/repo1.maven.org/maven2/org/apache/commons/commons-math3/3.2/commons-math3-3.2.jar",
+          "https://repo1.maven.org/maven2/org/apache/commons/commons-math3/3.2/commons-math3-3.2.jar",
+      ],
+      licenses = ["notice"],  # Apache 2.0
+      testonly_ = True,
+  )
+
+  java_import_external(
+      name = "org_openjdk_jmh_core",
+      jar_sha256 = "79aecd73ffb5d95d88b1ac36b505fa30ae3e83788e936838e2be9a51074fd2dd",
+      jar_urls = [
+          "http://mirror.tensorflow.org/repo1.maven.org/maven2/org/openjdk/jmh/jmh-core/1.21/jmh-core-1.21.jar",
+          "https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-core/1.21/jmh-core-1.21.jar",
+      ],
+      licenses = ["reciprocal"],  # GPLv2 with Classpath Exception
+      testonly_ = True,
+      deps = [
+          "@net_sf_jopt_simple",
+          "@org_apache_commons_math3",
+      ],
+  )
+
+  java_import_external(
+      name = "org_openjdk_jmh_generator_annprocess",
+      jar_sha256 = "c5636ecbc617732f5acf41f94521cf6ae4f5bc6ad3512e82416fbbaabe805fe5",
+      jar_urls = [
+          "http://mirror.tensorflow.org/repo1.maven.org/maven2/org/openjdk/jmh/jmh-generator-annprocess/1.21/jmh-generator-annprocess-1.21.jar",
+          "https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-generator-annprocess/1.21/jmh-generator-annprocess-1.21.jar",
+      ],
+      licenses = ["reciprocal"],  # GPLv2 with Classpath Exception
+      testonly_ = True,
+      deps = ["@org_openjdk_jmh_core"],
+      extra_build_file_content = "\n".join([
+          "java_plugin(",
+          "    name = \"plugin\",",
+          "    processor_class = \"org.openjdk.jmh.generators.BenchmarkProcessor\",",
+          "    testonly = True,",
+          "    deps = [\":org_openjdk_jmh_generator_annprocess\"],",
+          ")",
+      ]),
+  )